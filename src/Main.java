@@ -14,8 +14,10 @@ import schemes.SchemeZVAd;
 import schemes.SchemeZVAv;
 import schemes.SchemeZVAt;
 import algorithms.Scheme;
+import algorithms.SearchAlgorithm;
 import algorithms.SimulationResult;
 import algorithms.Simulator;
+import algorithms.SteadyStateTracer;
 import algorithms.TraceGenerator;
 
 import ec.util.MersenneTwisterFast;
@@ -35,7 +37,10 @@ import nl.utwente.ewi.fmt.EXPRES.Version;
 import nl.utwente.ewi.fmt.EXPRES.expression.ConstantExpression;
 import nl.utwente.ewi.fmt.EXPRES.expression.VariableExpression;
 
+import models.CompiledStateSpace;
 import models.ExpModel;
+import models.NeighbourCache;
+import models.StateSpace;
 
 class Main {
 	static Random rng;
@@ -48,7 +53,9 @@ class Main {
 	static boolean mc = false, zvad = false, zvav = false, unif = false;
 	static boolean zvat = false;
 	static boolean jsonOutput = false;
+	static boolean groupProperties = false;
 	static boolean unsafeComposition = false;
+	static int compiledStateLimit = 0;
 	static LTS model;
 	static TreeSet<Property> properties = new TreeSet<>();
 
@@ -109,17 +116,18 @@ class Main {
 		return "CPU";
 	}
 
+	private static double forcingBound(Property prop)
+	{
+		if (forceBound != null)
+			return forceBound;
+		if (prop.type == Property.Type.STEADY_STATE)
+			return Double.POSITIVE_INFINITY;
+		return 0;
+	}
+
 	private static SimulationResult runSim(Property prop, Scheme s)
 	{
-		double force;
-		if (forceBound != null) {
-			force = forceBound;
-		} else {
-			if (prop.type == Property.Type.STEADY_STATE)
-				force = Double.POSITIVE_INFINITY;
-			else
-				force = 0;
-		}
+		double force = forcingBound(prop);
 		Simulator simulator = new Simulator(rng, prop, s, force);
 		currentSimulator = simulator;
 		SimulationResult res;
@@ -135,99 +143,244 @@ class Main {
 		return res;
 	}
 
+	/* Simulate a group of properties (see --group-properties) in the
+	 * same traces. */
+	private static SimulationResult[] runSim(Property[] group, Scheme s)
+	{
+		if (group.length == 1)
+			return new SimulationResult[]{runSim(group[0], s)};
+		double force = forcingBound(group[0]);
+		Simulator simulator = new Simulator(rng, group, s, force);
+		currentSimulator = simulator;
+		return simulator.simAll(maxTime, maxSims, 1-confidence);
+	}
+
+	private static Property[] renamed(Property[] group, boolean multiple,
+	                                  String suffix)
+	{
+		if (!multiple)
+			return group;
+		Property[] ret = new Property[group.length];
+		for (int i = 0; i < group.length; i++)
+			ret[i] = new Property(group[i], group[i].name + suffix);
+		return ret;
+	}
+
+	/* The state space shared by consecutive simulations, and its
+	 * search for the goal of sharedGoal (null if not searched yet).
+	 * The search replaces HPCs by HPC states, after which the state
+	 * space is only used for IS schemes for properties with the same
+	 * goal. */
+	private static StateSpace sharedSpace;
+	private static SearchAlgorithm sharedSearch;
+	private static Property sharedGoal;
+
+	private static void newStateSpace() throws IOException
+	{
+		StateSpace statespace = new ExpModel(epsilon, model);
+		if (compiledStateLimit > 0) {
+			StateSpace c = CompiledStateSpace.compile(statespace,
+			                                          compiledStateLimit);
+			if (c == null)
+				System.err.println("Warning: More than " + compiledStateLimit + " states, not compiling state space.");
+			else
+				statespace = c;
+		}
+		sharedSpace = statespace;
+		sharedSearch = null;
+		sharedGoal = null;
+	}
+
+	/* The shared state space, as long as it has not been searched. */
+	private static StateSpace plainStateSpace() throws IOException
+	{
+		if (sharedSpace == null || sharedSearch != null)
+			newStateSpace();
+		return sharedSpace;
+	}
+
+	/* The search of the shared state space for the goal of prop. */
+	private static SearchAlgorithm search(Property prop)
+			throws IOException
+	{
+		if (sharedSpace == null
+		    || (sharedSearch != null && !sharedGoal.sameGoal(prop)))
+		{
+			newStateSpace();
+		}
+		if (sharedSearch == null) {
+			SearchAlgorithm s = new SearchAlgorithm(sharedSpace, prop);
+			try {
+				s.runAlgorithm();
+			} catch (UnsupportedOperationException e) {
+				/* The search may have left the state space
+				 * half-modified. */
+				sharedSpace = null;
+				throw e;
+			}
+			sharedSearch = s;
+			sharedGoal = prop;
+		}
+		return sharedSearch;
+	}
+
+	private static void addResults(List<SimulationResult> ret,
+	                               SimulationResult[] res)
+	{
+		synchronized(ret) {
+			ret.addAll(Arrays.asList(res));
+			currentSimulator = null;
+		}
+	}
+
+	/* Report that a group could not be simulated. */
+	private static void failed(Property[] group,
+	                           UnsupportedOperationException e)
+	{
+		String names = "";
+		for (Property prop : group)
+			names += (names.isEmpty() ? "" : ", ") + prop.name;
+		System.err.println(names + ": " + e.getMessage());
+	}
+
+	/**
+	 * Simulate groups of properties with the same goal, where every
+	 * group is either a single property or properties that only
+	 * differ in their time bounds (in increasing order).
+	 *
+	 * All groups share the state space: the plain schemes run first,
+	 * and then the IS schemes share one search. A group that cannot
+	 * be simulated is reported and skipped by the later schemes,
+	 * without affecting the other groups.
+	 */
 	private static void runSimulations(List<SimulationResult> ret,
-	                                   Property prop)
+	                                   List<Property[]> groups)
 			throws IOException
 	{
-		boolean multiple = false;
-		ExpModel statespace = new ExpModel(epsilon, model);
+		boolean[] skip = new boolean[groups.size()];
 		if (!(mc || zvav || zvad || zvat || unif)) {
-			Scheme s;
-			if (prop.type == Property.Type.EXPECTED_VALUE
-			    && prop.timeBound == Double.POSITIVE_INFINITY)
-			{
-				s = new Scheme(statespace);
-			} else {
-				s = SchemeZVAv.instantiate(statespace, prop);
-			}
-			SimulationResult res = runSim(prop, s);
-			synchronized(ret) {
-				ret.add(res);
-				currentSimulator = null;
+			for (Property[] group : groups) {
+				Property prop = group[group.length - 1];
+				try {
+					Scheme s;
+					if (prop.type == Property.Type.EXPECTED_VALUE
+					    && prop.timeBound == Double.POSITIVE_INFINITY)
+					{
+						s = new Scheme(plainStateSpace());
+					} else {
+						SearchAlgorithm search = search(prop);
+						s = SchemeZVAv.instantiate(sharedSpace, search);
+					}
+					addResults(ret, runSim(group, s));
+				} catch (UnsupportedOperationException e) {
+					failed(group, e);
+				}
 			}
+			showCacheStats(sharedSpace);
 			return;
 		}
+		boolean multiple = false;
 		if ((mc ? 1 : 0) + (zvav ? 1 : 0) + (zvad ? 1 : 0) + (unif ? 1 : 0) > 1)
 			multiple = true;
 
 		if (mc) {
-			Scheme mc = new Scheme(statespace);
-			Property nProp = prop;
-			if (multiple)
-				nProp = new Property(prop, prop.name + "-MC");
-			SimulationResult res = runSim(nProp, mc);
-			synchronized(ret) {
-				ret.add(res);
-				currentSimulator = null;
+			for (int i = 0; i < groups.size(); i++) {
+				Property[] group = groups.get(i);
+				try {
+					Scheme mc = new Scheme(plainStateSpace());
+					Property[] nProps = renamed(group, multiple, "-MC");
+					addResults(ret, runSim(nProps, mc));
+				} catch (UnsupportedOperationException e) {
+					failed(group, e);
+					skip[i] = true;
+				}
 			}
 		}
 
 		if (unif) {
-			Scheme s = new SchemeUniform(statespace);
-			Property nProp = prop;
-			if (multiple)
-				nProp = new Property(prop, prop.name + "-Unif");
-			SimulationResult res = runSim(nProp, s);
-			synchronized(ret) {
-				ret.add(res);
-				currentSimulator = null;
+			for (int i = 0; i < groups.size(); i++) {
+				Property[] group = groups.get(i);
+				if (skip[i])
+					continue;
+				try {
+					Scheme s = new SchemeUniform(plainStateSpace());
+					Property[] nProps = renamed(group, multiple, "-Unif");
+					addResults(ret, runSim(nProps, s));
+				} catch (UnsupportedOperationException e) {
+					failed(group, e);
+					skip[i] = true;
+				}
 			}
 		}
 
 		if (zvad) {
-			SchemeZVAd sc = SchemeZVAd.instantiate(statespace, prop);
-			if (prop.type == Property.Type.EXPECTED_VALUE) {
-				System.err.println("WARNING: Importance sampling and expected value queries often give misleading results.");
-			}
-			Property nProp = prop;
-			if (multiple)
-				nProp = new Property(prop, prop.name + "-ZVAd");
-			SimulationResult res = runSim(nProp, sc);
-			synchronized(ret) {
-				ret.add(res);
-				currentSimulator = null;
+			for (int i = 0; i < groups.size(); i++) {
+				Property[] group = groups.get(i);
+				Property prop = group[group.length - 1];
+				if (skip[i])
+					continue;
+				try {
+					SearchAlgorithm search = search(prop);
+					SchemeZVAd sc = SchemeZVAd.instantiate(sharedSpace, search);
+					if (prop.type == Property.Type.EXPECTED_VALUE) {
+						System.err.println("WARNING: Importance sampling and expected value queries often give misleading results.");
+					}
+					Property[] nProps = renamed(group, multiple, "-ZVAd");
+					addResults(ret, runSim(nProps, sc));
+				} catch (UnsupportedOperationException e) {
+					failed(group, e);
+					skip[i] = true;
+				}
 			}
 		}
 
 		if (zvav) {
-			if (prop.type == Property.Type.EXPECTED_VALUE) {
-				System.err.println("WARNING: Importance sampling and expected value queries often give misleading results.");
-			}
-			SchemeZVAv sc = SchemeZVAv.instantiate(statespace, prop);
-			Property nProp = prop;
-			if (multiple)
-				nProp = new Property(prop, prop.name + "-ZVAv");
-			SimulationResult res = runSim(nProp, sc);
-			synchronized(ret) {
-				ret.add(res);
-				currentSimulator = null;
+			for (int i = 0; i < groups.size(); i++) {
+				Property[] group = groups.get(i);
+				Property prop = group[group.length - 1];
+				if (skip[i])
+					continue;
+				if (prop.type == Property.Type.EXPECTED_VALUE) {
+					System.err.println("WARNING: Importance sampling and expected value queries often give misleading results.");
+				}
+				try {
+					SearchAlgorithm search = search(prop);
+					SchemeZVAv sc = SchemeZVAv.instantiate(sharedSpace, search);
+					Property[] nProps = renamed(group, multiple, "-ZVAv");
+					addResults(ret, runSim(nProps, sc));
+				} catch (UnsupportedOperationException e) {
+					failed(group, e);
+					skip[i] = true;
+				}
 			}
 		}
 		if (zvat) {
-			if (prop.type == Property.Type.EXPECTED_VALUE) {
-				System.err.println("WARNING: Importance sampling and expected value queries often give misleading results.");
-			}
-			SchemeZVAt sc = SchemeZVAt.instantiate(statespace, prop);
-			Property nProp = prop;
-			if (multiple)
-				nProp = new Property(prop, prop.name + "-ZVAv");
-			SimulationResult res = runSim(nProp, sc);
-			synchronized(ret) {
-				ret.add(res);
-				currentSimulator = null;
+			for (int i = 0; i < groups.size(); i++) {
+				Property[] group = groups.get(i);
+				Property prop = group[group.length - 1];
+				if (skip[i])
+					continue;
+				if (prop.type == Property.Type.EXPECTED_VALUE) {
+					System.err.println("WARNING: Importance sampling and expected value queries often give misleading results.");
+				}
+				try {
+					SearchAlgorithm search = search(prop);
+					SchemeZVAt sc = SchemeZVAt.instantiate(sharedSpace, search);
+					Property[] nProps = renamed(group, multiple, "-ZVAv");
+					addResults(ret, runSim(nProps, sc));
+				} catch (UnsupportedOperationException e) {
+					failed(group, e);
+					skip[i] = true;
+				}
 			}
 		}
-		return;
+		showCacheStats(sharedSpace);
+	}
+
+	private static void showCacheStats(StateSpace statespace)
+	{
+		if (Simulator.showProgress && statespace != null)
+			System.err.println(statespace.getNeighbourCache());
 	}
 
 	private static void benchmarkHeader(String[] args, String model)
@@ -439,7 +592,7 @@ class Main {
 			{"General options:"},
 			{"-h", "--help", "Show this message and exit."},
 			{"-p N", "Use N threads in parallel."},
-			{"--progress", "Show progress during simulations."},
+			{"--progress", "Show progress (and cache statistics) during simulations."},
 			{"--version", "Show the program version and exit."},
 			{"Available queries:"},
 			{"-a", "Compute system unavailability."},
@@ -450,7 +603,11 @@ class Main {
 			{"Simulation options:"},
 			{"-e E", "Simulate until an absolute of E has been reached."},
 			{"--relErr E", "Simulate until a relative of E has been reached."},
+			{"--relErr-restarts", "Reach the relative error by restarting with more"},
+			{"",            "runs, rather than extending the runs (slower)."},
 			{"-n N", "Simulate exactly N runs."},
+			{"--group-properties", "Simulate time-bounded reachability properties that"},
+			{"",                   "only differ in their time bounds in the same runs."},
 			{"--rng <rng>", "Set the RNG type, available choices are:"},
 			{"",            "  \"XS128\":   Xoroshiro-128"},
 			{"",            "  \"mt19937\": Mersenne Twister"},
@@ -466,6 +623,13 @@ class Main {
 			{"-f F", "Stop time-forcing when the importance factor drops below F."},
 			{"--no-forcing", "Do not apply time-forcing."},
 			{"--no-hpc-boost", "Do not boost HPC sink transitions (only affects time-bounded reachability"},
+			{"--dense-hpc", "Compute HPC exit probabilities by dense matrix"},
+			{"",            "powering rather than sparse elimination (which is"},
+			{"",            "still done for the mean times in HPCs)."},
+			{"--cycle-pool K", "(For unavailability): measure cycle durations only"},
+			{"",               "in the first K cycles of every generator stream"},
+			{"",               "(up to 8 per thread), and use those for all"},
+			{"",               "cycles of the stream."},
 			{"Model (optimization) options:"},
 			{"--compose full", "Compute the full parallel composition explicitly."},
 			{"--compose none", "Do not explicitly compute any parallel composition."},
@@ -476,6 +640,11 @@ class Main {
 			{"--no-dc", "Do not perform \"don't care\" optimizations."},
 			{"--storm", "Use Storm-DFT to convert .dft files to automata"},
 			{"--dftcalc", "Use DFTCalc to convert .dft files to automata (default)"},
+			{"--pack-states", "Store the states packed in off-heap memory."},
+			{"--neighbour-cache M", "Cache at most about M MiB of explored transitions"},
+			{"",                    "per state space (default: a quarter of the heap)."},
+			{"--compile-states N", "Explore the full state space before simulating, if"},
+			{"",                   "it has at most N states."},
 			/* Undocumented option: --unsafe-scheduling */
 			{"Output options:"},
 			{"--json", "Format the output in JSON format following the QComp"},
@@ -532,10 +701,15 @@ class Main {
 			else
 				showResults(time, goodResults);
 			if (currentSimulator != null) {
-				SimulationResult res = currentSimulator.getCurrentEstimate(confidence);
+				SimulationResult[] res = currentSimulator.getCurrentEstimates(confidence);
 				System.err.println("***Unexpected interruption***");
-				System.err.println("Best estimate for property " + res.property.name + ":");
-				System.err.println(res.toString());
+				/* Null if interrupted before simulating. */
+				if (res == null)
+					res = new SimulationResult[0];
+				for (SimulationResult r : res) {
+					System.err.println("Best estimate for property " + r.property.name + ":");
+					System.err.println(r.toString());
+				}
 
 			}
 		}
@@ -594,12 +768,16 @@ class Main {
 				forceBound = Double.valueOf(args[++i]);
 			else if (args[i].equals("-p"))
 				Simulator.coresToUse = Integer.parseInt(args[++i]);
-			else if (args[i].equals("--progress"))
+			else if (args[i].equals("--progress")) {
 				Simulator.showProgress = true;
+				NeighbourCache.countHits = true;
+			}
 			else if (args[i].equals("--acc"))
 				TraceGenerator.acceleration = Double.parseDouble(args[++i]);
 			else if (args[i].equals("--relErr"))
 				relErr = Double.parseDouble(args[++i]);
+			else if (args[i].equals("--relErr-restarts"))
+				Simulator.restartRelErr = true;
 			else if (args[i].equals("--mc"))
 				mc = true;
 			else if (args[i].equals("--zvad"))
@@ -635,6 +813,8 @@ class Main {
 				onlyProperties.add(args[++i]);
 			else if (args[i].equals("--json"))
 				jsonOutput = true;
+			else if (args[i].equals("--group-properties"))
+				groupProperties = true;
 			else if (args[i].equals("--export-jani"))
 				janiOutputFile = args[++i];
 			else if (args[i].equals("--export-tralab"))
@@ -650,12 +830,22 @@ class Main {
 					limit = Integer.parseInt(args[i]);
 				compositionStateLimit = limit;
 			}
+			else if (args[i].equals("--pack-states"))
+				ExpModel.packStates = true;
+			else if (args[i].equals("--neighbour-cache"))
+				StateSpace.neighbourCacheSize = (long)(Double.parseDouble(args[++i]) * (1 << 20));
+			else if (args[i].equals("--compile-states"))
+				compiledStateLimit = Integer.parseInt(args[++i]);
 			else if (args[i].equals("--unsafe-scheduling"))
 				unsafeComposition = true;
 			else if (args[i].equals("--no-forcing"))
 				forceBound = Double.POSITIVE_INFINITY;
 			else if (args[i].equals("--no-hpc-boost"))
 				TraceGenerator.enableHpcBoost = false;
+			else if (args[i].equals("--dense-hpc"))
+				SearchAlgorithm.denseHpcSolver = true;
+			else if (args[i].equals("--cycle-pool"))
+				SteadyStateTracer.cyclePool = Integer.parseInt(args[++i]);
 			else if (args[i].equals("--storm")) {
 				useStorm = true;
 				if (!constants.containsKey("TIME_BOUND"))
@@ -736,15 +926,39 @@ class Main {
 			}
 		});
 
+		ArrayList<Property> selected = new ArrayList<>();
 		for (Property prop : properties) {
 			if (!onlyProperties.isEmpty() && !onlyProperties.contains(prop.name))
 				continue;
-			try {
-				runSimulations(results, prop);
-			} catch (UnsupportedOperationException e2) {
-				System.err.println(prop.name + ": " + e2.getMessage());
+			selected.add(prop);
+		}
+		if (groupProperties && !Double.isNaN(relErr)) {
+			System.err.println("Warning: Simulating up to relative error, not grouping properties.");
+			groupProperties = false;
+		}
+		ArrayList<Property[]> sameGoal = new ArrayList<>();
+		for (int i = 0, j; i < selected.size(); i = j) {
+			Property prop = selected.get(i);
+			/* Properties only differing in their time bounds
+			 * are adjacent, by increasing time bound. */
+			for (j = i + 1; j < selected.size(); j++) {
+				if (!groupProperties
+				    || !prop.differsOnlyInTimeBound(selected.get(j)))
+					break;
+			}
+			Property[] group = selected.subList(i, j).toArray(new Property[0]);
+			/* Adjacent properties with the same goal share the
+			 * state space. */
+			if (!sameGoal.isEmpty()
+			    && !sameGoal.get(0)[0].sameGoal(group[0]))
+			{
+				runSimulations(results, sameGoal);
+				sameGoal.clear();
 			}
+			sameGoal.add(group);
 		}
+		if (!sameGoal.isEmpty())
+			runSimulations(results, sameGoal);
 		/* Results are dumped by the shutdown hook */
 		System.exit(0);
 	}
@@ -3,6 +3,7 @@ package algorithms;
 import models.StateSpace;
 import java.util.Random;
 import nl.utwente.ewi.fmt.EXPRES.Property;
+import nl.utwente.ewi.fmt.EXPRES.expression.CompiledExpression;
 import nl.utwente.ewi.fmt.EXPRES.expression.Expression;
 
 /** Tracer to estimate the expected (cumulative) value of some
@@ -11,11 +12,9 @@ import nl.utwente.ewi.fmt.EXPRES.expression.Expression;
  */
 public class ExpectedValueTracer extends TraceGenerator
 {
-	private long N;
-	private long M;
-	private double sum;
-	private double sumSquares;
+	private final Statistics stats = new Statistics();
 	private double estMean;
+	private boolean hadReward;
 	private final double UNIF_BOUND = 1e-10;
 
 	public ExpectedValueTracer(Random rng, Scheme s, Property prop,
@@ -36,34 +35,66 @@ public class ExpectedValueTracer extends TraceGenerator
 	public void reset()
 	{
 		super.reset();
-		N = M = 0;
-		sum = sumSquares = estMean = 0;
+		stats.reset();
+		estMean = 0;
 	}
 
 	public void resetAndEstimateMeans()
 	{
 		double newEstMean = 0;
-		if (N > 0)
-			newEstMean = sum / N;
+		if (stats.N > 0)
+			newEstMean = stats.sum / stats.N;
 		super.resetAndEstimateMeans();
 		estMean = newEstMean;
 	}
 
 	public void resetAndEstimateMeans(TraceGenerator[] ts)
 	{
-		double sum = 0;
-		long N = 0;
+		Statistics total = new Statistics();
+		Statistics snap = new Statistics();
 		super.resetAndEstimateMeans(ts);
 		for (TraceGenerator t : ts) {
 			if (t instanceof ExpectedValueTracer) {
-				sum += ((ExpectedValueTracer)t).sum;
-				N += ((ExpectedValueTracer)t).N;
+				((ExpectedValueTracer)t).stats.snapshot(snap);
+				total.add(snap);
 			}
 		}
-		estMean = sum / N;
+		estMean = total.sum / total.N;
 	}
 
 	public void sample()
+	{
+		sampleBatch(1);
+	}
+
+	/** Simulate k traces, adding them to the statistics only once
+	 * at the end. */
+	public void sampleBatch(int k)
+	{
+		long M = 0;
+		double sum = 0, sumSquares = 0;
+		for (int i = 0; i < k; i++) {
+			double x = trace();
+			if (hadReward)
+				M++;
+			sum += x;
+			x -= estMean;
+			sumSquares = Math.fma(x, x, sumSquares);
+		}
+		stats.beginWrite();
+		stats.N += k;
+		stats.M += M;
+		stats.sum += sum;
+		stats.sumSquares += sumSquares;
+		stats.endWrite();
+	}
+
+	/**
+	 * Simulate one trace, setting hadReward if it obtained a
+	 * positive reward.
+	 * @return The weighted reward of the trace.
+	 */
+	private double trace()
 	{
 		StateSpace.State state = scheme.model.getInitialState();
 		double time = 0, reward = 0;
@@ -100,27 +131,30 @@ public class ExpectedValueTracer extends TraceGenerator
 		if (prop.transientReward != null)
 			reward += evaluate(prop.transientReward, state);
 
-		synchronized(this) {
-			N++;
-			if (reward > 0)
-				M++;
-			sum = Math.fma(reward, likelihood, sum);
-			double diffEst = Math.fma(reward, likelihood, -estMean);
-			sumSquares = Math.fma(diffEst, diffEst, sumSquares);
-		}
+		hadReward = reward > 0;
+		return reward * likelihood;
 	}
 
-	public synchronized SimulationResult getResult(double alpha)
+	public SimulationResult getResult(double alpha)
+	{
+		Statistics snap = new Statistics();
+		stats.snapshot(snap);
+		return getResult(snap, estMean, alpha);
+	}
+
+	private SimulationResult getResult(Statistics s, double estMean,
+	                                   double alpha)
 	{
 		long time = getElapsedTime();
+		long N = s.N, M = s.M;
 		if (M == 0) {
 			return new SimulationResult(prop, 0, alpha, Double.NaN,
 					0, 1, new long[]{N, M}, time,
 					scheme.storedStates());
 		}
-		double mean = sum / N;
-		double estSum = Math.fma(-N, estMean, sum);
-		double var = Math.fma(-estSum, estSum / N, sumSquares);
+		double mean = s.sum / N;
+		double estSum = Math.fma(-N, estMean, s.sum);
+		double var = Math.fma(-estSum, estSum / N, s.sumSquares);
 		var /= N - 1;
 		SimulationResult ret = null;
 
@@ -131,30 +165,27 @@ public class ExpectedValueTracer extends TraceGenerator
 
 	public SimulationResult getResult(TraceGenerator[] ts, double alpha)
 	{
-		sum = 0;
-		N = M = 0;
+		Statistics total = new Statistics();
+		Statistics snap = new Statistics();
+		double estMean = this.estMean;
 		for (TraceGenerator t : ts) {
 			if (t instanceof ExpectedValueTracer) {
 				ExpectedValueTracer rt = (ExpectedValueTracer)t;
-				synchronized(rt) {
-					if (estMean != rt.estMean) {
-						sum = 0;
-						sumSquares = 0;
-						N = M = 0;
-					}
-					estMean = rt.estMean;
-					sum += rt.sum;
-					sumSquares += rt.sumSquares;
-					N += rt.N;
-					M += rt.M;
-				}
+				rt.stats.snapshot(snap);
+				if (estMean != rt.estMean)
+					total.reset();
+				estMean = rt.estMean;
+				total.add(snap);
 			}
 		}
-		return getResult(alpha);
+		return getResult(total, estMean, alpha);
 	}
 
 	private double evaluate(Expression exp, StateSpace.State state)
 	{
+		CompiledExpression c = exp.compile(scheme.model);
+		if (c != null)
+			return c.evaluateDouble(state.getWords(c.words()));
 		return exp.evaluate(scheme.model, state).doubleValue();
 	}
 }
@@ -1,52 +1,41 @@
 package algorithms;
 
+import java.util.Arrays;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.DoubleAccumulator;
 
+/**
+ * Approximates T^inf for the transition matrix T of an absorbing
+ * chain by repeated squaring (see SearchAlgorithm.removeHpc()).
+ *
+ * Large matrices are split into blocks of rows, handled by the calling
+ * thread and threads of a shared pool, which meet at a barrier after
+ * transposing their rows and after multiplying them.
+ */
 public class ReachabilitySolver
 {
 	private static final double THRESHOLD = 1e-11;
+	/* Matrices with at most this many rows use a single thread. */
+	private static final int PARALLEL_LIMIT = 300;
+	/* Sizes of the tiles of rows, columns and terms in the
+	 * multiplication. */
+	private static final int ROW_TILE = 16, COL_TILE = 16, K_TILE = 1024;
+
+	private static ExecutorService pool;
+	private static int poolSize;
 
 	private double[][] T, tmp;
 	private final double[][] Ttransp;
 	private final DoubleAccumulator maxRem;
-
-	private class Worker implements Runnable {
-		private int minRow, maxRow;
-		public boolean done;
-
-		public Worker(int min, int max)
-		{
-			minRow = min;
-			maxRow = max;
-		}
-
-		public void run()
-		{
-			synchronized(maxRem) {
-				done = true;
-				maxRem.notifyAll();
-				while (done) {
-					try {
-						maxRem.wait();
-					} catch (InterruptedException e) {
-					}
-				}
-			}
-			while (T != null) {
-				iteration(minRow, maxRow);
-				synchronized(maxRem) {
-					done = true;
-					maxRem.notifyAll();
-					while (done) {
-						try {
-							maxRem.wait();
-						} catch (InterruptedException e) {
-						}
-					}
-				}
-			}
-		}
-	}
+	private int its, maxIts;
+	/* Only changed at the end of an iteration, while all workers
+	 * wait at the barrier. */
+	private boolean finished;
 
 	public ReachabilitySolver(double[][] T)
 	{
@@ -56,135 +45,162 @@ public class ReachabilitySolver
 		maxRem = new DoubleAccumulator(Double::max, 0);
 	}
 
-	private ReachabilitySolver(ReachabilitySolver source, int min, int max)
+	private static synchronized ExecutorService getPool(int threads)
 	{
-		T = source.T;
-		tmp = source.tmp;
-		Ttransp = source.Ttransp;
-		maxRem = source.maxRem;
+		if (pool == null || poolSize < threads) {
+			if (pool != null)
+				pool.shutdown();
+			pool = Executors.newFixedThreadPool(threads, r -> {
+				Thread t = new Thread(r, "ReachabilitySolver");
+				t.setDaemon(true);
+				return t;
+			});
+			poolSize = threads;
+		}
+		return pool;
 	}
 
 	public double[][] solve(int maxIts)
 	{
-		if (T.length <= 300) {
-			singleCoreSolve(maxIts);
+		this.maxIts = maxIts;
+		finished = maxIts <= 0;
+		maxRem.reset();
+		int parts = 1;
+		if (T.length > PARALLEL_LIMIT) {
+			parts = Runtime.getRuntime().availableProcessors();
+			if (parts > 2)
+				parts -= 1;
+		}
+		if (parts == 1) {
+			while (!finished) {
+				transpose(0, T.length);
+				iteration(0, T.length);
+				endIteration();
+			}
 		} else {
-			int cores = Runtime.getRuntime().availableProcessors();
-			if (cores > 2)
-				cores -= 1;
-			Worker[] workers = new Worker[cores];
-
-			Runnable r;
-			for (int i = 0; i < cores - 1; i++) {
-				workers[i] = new Worker(
-						i * (T.length / cores),
-						(i + 1) * (T.length / cores));
-				new Thread(workers[i]).start();
+			/* Only one solver may use the pool at a time, as
+			 * the workers block each other at the barriers. */
+			synchronized(ReachabilitySolver.class) {
+				parallelSolve(parts);
 			}
-			workers[cores - 1] = new Worker(
-					(cores - 1) * (T.length / cores),
-					T.length);
-			new Thread(workers[cores - 1]).start();
-			multiCoreSolve(maxIts, workers);
 		}
-		return tmp;
+		return T;
 	}
 
-	public void singleCoreSolve(int maxIts)
+	private void parallelSolve(int parts)
 	{
-		long startTime = System.nanoTime();
-		maxRem.accumulate(Double.POSITIVE_INFINITY);
-		for (int i = 0; i < maxIts && maxRem.get() > THRESHOLD; i++) {
-			maxRem.reset();
-			preIteration();
-			iteration(0, T.length);
-			double[][] t1 = tmp; tmp = T; T = t1;
-			long endTime = System.nanoTime();
+		CyclicBarrier transposed = new CyclicBarrier(parts);
+		CyclicBarrier iterated = new CyclicBarrier(parts, this::endIteration);
+		ExecutorService pool = getPool(parts - 1);
+		Future<?>[] futures = new Future<?>[parts - 1];
+		for (int i = 1; i < parts; i++) {
+			int part = i;
+			futures[i - 1] = pool.submit(() -> work(part, parts, transposed, iterated));
+		}
+		work(0, parts, transposed, iterated);
+		for (Future<?> f : futures) {
+			try {
+				f.get();
+			} catch (InterruptedException | ExecutionException e) {
+				throw new RuntimeException(e);
+			}
 		}
-		tmp = T;
 	}
 
-	public void multiCoreSolve(int maxIts, Worker[] workers)
+	private void work(int part, int parts, CyclicBarrier transposed,
+	                  CyclicBarrier iterated)
 	{
-		long startTime = System.nanoTime();
-		maxRem.accumulate(Double.POSITIVE_INFINITY);
-		synchronized(maxRem) {
-			for (int j = 0; j < workers.length; j++) {
-				while (!workers[j].done) {
-					try {
-						maxRem.wait();
-					} catch (InterruptedException e) {
-					}
-				}
+		int minRow = (int)((long)part * T.length / parts);
+		int maxRow = (int)((long)(part + 1) * T.length / parts);
+		try {
+			while (!finished) {
+				transpose(minRow, maxRow);
+				transposed.await();
+				iteration(minRow, maxRow);
+				iterated.await();
 			}
+		} catch (InterruptedException | BrokenBarrierException e) {
+			transposed.reset();
+			iterated.reset();
+			throw new RuntimeException(e);
+		} catch (RuntimeException | Error e) {
+			/* Release the other workers. */
+			transposed.reset();
+			iterated.reset();
+			throw e;
 		}
-		for (int i = 0; i < maxIts && maxRem.get() > THRESHOLD; i++) {
+	}
+
+	private void endIteration()
+	{
+		double[][] t1 = tmp; tmp = T; T = t1;
+		its++;
+		if (its >= maxIts || maxRem.get() <= THRESHOLD)
+			finished = true;
+		else
 			maxRem.reset();
-			preIteration();
-			synchronized(maxRem) {
-				for (int j = 0; j < workers.length; j++)
-					workers[j].done = false;
-				maxRem.notifyAll();
-				for (int j = 0; j < workers.length; j++) {
-					while (!workers[j].done) {
-						try {
-							maxRem.wait();
-						} catch (InterruptedException e) {
-						}
-					}
-				}
-			}
-			double[][] t1 = tmp; tmp = T; T = t1;
-			long endTime = System.nanoTime();
-		}
-		tmp = T;
-		T = null;
-		synchronized(maxRem) {
-			for (int j = 0; j < workers.length; j++)
-				workers[j].done = false;
-			maxRem.notifyAll();
-		}
 	}
 
-	private void preIteration()
+	/* Copy rows minRow to maxRow of T into the transposed matrix. */
+	private void transpose(int minRow, int maxRow)
 	{
-		for (int i = 0; i < T.length / 8; i++) {
+		int i = minRow;
+		for (; i + 8 <= maxRow; i += 8) {
 			for (int j = 0; j < Ttransp.length; j++) {
-				Ttransp[j][8*i+0] = T[8*i+0][j];
-				Ttransp[j][8*i+1] = T[8*i+1][j];
-				Ttransp[j][8*i+2] = T[8*i+2][j];
-				Ttransp[j][8*i+3] = T[8*i+3][j];
-				Ttransp[j][8*i+4] = T[8*i+4][j];
-				Ttransp[j][8*i+5] = T[8*i+5][j];
-				Ttransp[j][8*i+6] = T[8*i+6][j];
-				Ttransp[j][8*i+7] = T[8*i+7][j];
+				double[] col = Ttransp[j];
+				col[i+0] = T[i+0][j];
+				col[i+1] = T[i+1][j];
+				col[i+2] = T[i+2][j];
+				col[i+3] = T[i+3][j];
+				col[i+4] = T[i+4][j];
+				col[i+5] = T[i+5][j];
+				col[i+6] = T[i+6][j];
+				col[i+7] = T[i+7][j];
 			}
 		}
-		for (int i = 8 * (T.length / 8); i < T.length; i++) {
-			for (int j = 0; j < Ttransp.length; j++) {
+		for (; i < maxRow; i++) {
+			for (int j = 0; j < Ttransp.length; j++)
 				Ttransp[j][i] = T[i][j];
-			}
 		}
 	}
 
+	/* Square rows minRow to maxRow of T into tmp, in tiles so that
+	 * the parts of the rows and columns being combined stay in the
+	 * cache. Every element is still summed in order of k. */
 	public void iteration(int minRow, int maxRow)
 	{
+		int n = T.length, cols = Ttransp.length;
+		for (int i0 = minRow; i0 < maxRow; i0 += ROW_TILE) {
+			int i1 = Math.min(i0 + ROW_TILE, maxRow);
+			for (int i = i0; i < i1; i++)
+				Arrays.fill(tmp[i], 0);
+			for (int k0 = 0; k0 < n; k0 += K_TILE) {
+				int k1 = Math.min(k0 + K_TILE, n);
+				for (int j0 = 0; j0 < cols; j0 += COL_TILE) {
+					int j1 = Math.min(j0 + COL_TILE, cols);
+					for (int i = i0; i < i1; i++) {
+						double[] row = T[i];
+						double[] tmpRow = tmp[i];
+						for (int j = j0; j < j1; j++) {
+							double[] col = Ttransp[j];
+							double sum = tmpRow[j];
+							for (int k = k0; k < k1; k++)
+								sum += row[k] * col[k];
+							tmpRow[j] = sum;
+						}
+					}
+				}
+			}
+		}
 		double localMaxRem = 0;
 		for (int i = minRow; i < maxRow; i++) {
-			double rowSum = 0;
 			double[] row = T[i];
 			double[] tmpRow = tmp[i];
-			for (int j = 0; j < row.length; j++) {
-				double[] col = Ttransp[j];
-				double sum = 0;
-				for (int k = 0; k < T.length; k++)
-					sum += row[k] * col[k];
-				if (j < T.length)
-					rowSum += sum;
-				if (j >= T.length)
-					sum += row[j];
-				tmpRow[j] = sum;
-			}
+			double rowSum = 0;
+			for (int j = 0; j < n; j++)
+				rowSum += tmpRow[j];
+			for (int j = n; j < cols; j++)
+				tmpRow[j] += row[j];
 			localMaxRem = Double.max(localMaxRem, rowSum);
 		}
 		maxRem.accumulate(localMaxRem);
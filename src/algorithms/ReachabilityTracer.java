@@ -6,146 +6,156 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
-import java.util.WeakHashMap;
 import nl.utwente.ewi.fmt.EXPRES.Property;
 
 /** Tracer to estimate the probability of hitting a red state before
  * hitting either a blue state of the time bound.
+ *
+ * A tracer can estimate several properties at once, if they only
+ * differ in their (finite) time bounds: the traces then run up to the
+ * largest bound, and count for every bound they meet.
  */
 public class ReachabilityTracer extends TraceGenerator
 {
-	private long N;
-	private long M;
-	private double sum;
-	private double sumSquares;
-	private double estMean;
-	private final double UNIF_BOUND = 1e-10;
+	/* The properties, by increasing time bound (ending with prop),
+	 * and their statistics. */
+	private final Property[] props;
+	private final Statistics[] stats;
+	private final double[] estMeans;
 
 	public ReachabilityTracer(Random rng, Scheme s, Property prop,
 	                          double forceBound)
 	{
-		super(rng, s, prop, forceBound);
+		this(rng, s, new Property[]{prop}, forceBound);
+	}
+
+	/**
+	 * @param props Properties differing only in their time bounds,
+	 * by increasing time bound.
+	 */
+	public ReachabilityTracer(Random rng, Scheme s, Property[] props,
+	                          double forceBound)
+	{
+		super(rng, s, props[props.length - 1], forceBound);
+		for (int i = 1; i < props.length; i++) {
+			if (!(props[i - 1].timeBound <= props[i].timeBound)
+			    || !Double.isFinite(props[i].timeBound))
+			{
+				throw new IllegalArgumentException("Grouped properties need increasing, finite time bounds.");
+			}
+		}
+		this.props = props;
+		stats = new Statistics[props.length];
+		for (int i = 0; i < props.length; i++)
+			stats[i] = new Statistics();
+		estMeans = new double[props.length];
 	}
 
 	public TraceGenerator copy()
 	{
 		ReachabilityTracer ret;
 		ret = new ReachabilityTracer(subRNG(), scheme.clone(),
-		                             prop, forceBound);
-		ret.estMean = estMean;
+		                             props, forceBound);
+		System.arraycopy(estMeans, 0, ret.estMeans, 0, estMeans.length);
 		return ret;
 	}
 
 	public void reset()
 	{
 		super.reset();
-		N = M = 0;
-		sum = sumSquares = estMean = 0;
+		for (Statistics s : stats)
+			s.reset();
+		Arrays.fill(estMeans, 0);
 	}
 
 	public void resetAndEstimateMeans()
 	{
-		double newEstMean = 0;
-		if (N > 0)
-			newEstMean = sum / N;
+		double[] newEstMeans = new double[props.length];
+		for (int i = 0; i < props.length; i++) {
+			if (stats[i].N > 0)
+				newEstMeans[i] = stats[i].sum / stats[i].N;
+		}
 		super.resetAndEstimateMeans();
-		estMean = newEstMean;
+		System.arraycopy(newEstMeans, 0, estMeans, 0, props.length);
 	}
 
 	public void resetAndEstimateMeans(TraceGenerator[] ts)
 	{
-		double sum = 0;
-		long N = 0;
+		Statistics[] total = new Statistics[props.length];
+		Statistics snap = new Statistics();
 		super.resetAndEstimateMeans(ts);
-		for (TraceGenerator t : ts) {
-			if (t instanceof ReachabilityTracer) {
-				sum += ((ReachabilityTracer)t).sum;
-				N += ((ReachabilityTracer)t).N;
+		for (int i = 0; i < props.length; i++) {
+			total[i] = new Statistics();
+			for (TraceGenerator t : ts) {
+				if (t instanceof ReachabilityTracer) {
+					((ReachabilityTracer)t).stats[i].snapshot(snap);
+					total[i].add(snap);
+				}
 			}
 		}
-		estMean = sum / N;
+		for (int i = 0; i < props.length; i++)
+			estMeans[i] = total[i].sum / total[i].N;
 	}
 
-	private static class Path {
-		private final double[] rates;
-		private final int hash;
-		public Path(double[] rates) {
-			this.rates = rates;
-			hash = Arrays.hashCode(rates);
-		}
-
-		public int hashCode() {
-			return hash;
+	private double computeProb(HashMap<State, int[]> path,
+	                           double timeBound)
+	{
+		int totalCount = 0;
+		for (int[] c : path.values())
+			totalCount += c[0] + 1;
+		double rates[] = new double[totalCount];
+		int k = 0;
+		for (Map.Entry<State, int[]> e : path.entrySet()) {
+			double rate = e.getKey().getNeighbours().exitRate;
+			for (int count = e.getValue()[0] + 1; count > 0; count--)
+				rates[k++] = rate;
 		}
+		return UniformisationCache.SHARED.probability(rates, timeBound);
+	}
 
-		public boolean equals(Object other) {
-			if (!(other instanceof Path))
-				return false;
-			Path otherPath = (Path)other;
-			if (otherPath.hash != hash)
-				return false;
-			return Arrays.equals(rates, otherPath.rates);
-		}
+	public void sample()
+	{
+		sampleBatch(1);
 	}
-	private final Map<Path, Double> cache = new WeakHashMap<>();
 
-	private double computeProb(HashMap<State, int[]> path)
+	/** Simulate k traces, adding them to the statistics only once
+	 * at the end. */
+	public void sampleBatch(int k)
 	{
-		double tmpUnifRate = Double.NEGATIVE_INFINITY;
-		int totalCount = 0;
-		for (java.util.Map.Entry<State, int[]> e : path.entrySet()) {
-			double rate = e.getKey().getNeighbours().exitRate;
-			if (rate > tmpUnifRate)
-				tmpUnifRate = rate;
-			totalCount += e.getValue()[0] + 1;
+		int n = props.length;
+		long[] M = new long[n];
+		double[] sum = new double[n], sumSquares = new double[n];
+		double[] xs = new double[n];
+		for (int i = 0; i < k; i++) {
+			trace(xs);
+			for (int j = 0; j < n; j++) {
+				double x = xs[j];
+				if (Double.isNaN(x))
+					continue;
+				M[j]++;
+				sum[j] += x;
+				x -= estMeans[j];
+				sumSquares[j] = Math.fma(x, x, sumSquares[j]);
+			}
 		}
-		final double unifRate = tmpUnifRate;
-		double rates[] = new double[totalCount + 1];
-		double probs[] = new double[totalCount + 1];
-		probs[0] = 1;
-		double undecProb = 1;
-		double reachProb = 0;
-		int k[] = new int[1];
-		path.forEach((State s, int[] c) -> {
-			int count = c[0] + 1;
-			double rate = s.getNeighbours().exitRate;
-			rate /= unifRate;
-			while (count --> 0)
-				rates[k[0]++] = rate;
-		});
-		Arrays.sort(rates);
-		for (int i = 0; i < rates.length / 2; i++) {
-			double tmp = rates[i];
-			rates[i] = rates[rates.length - i - 1];
-			rates[rates.length - i - 1] = tmp;
+		for (int j = 0; j < n; j++) {
+			Statistics s = stats[j];
+			s.beginWrite();
+			s.N += k;
+			s.M += M[j];
+			s.sum += sum[j];
+			s.sumSquares += sumSquares[j];
+			s.endWrite();
 		}
-		Path forCache = new Path(rates);
-		Double cached = cache.get(forCache);
-		if (cached != null)
-			return cached;
-		double prob = Math.exp(-unifRate * prop.timeBound);
-		int j = 1;
-		do {
-			double nextProb = 0;
-			double nextRate = 0;
-			int i;
-			undecProb -= prob;
-			prob *= (unifRate * prop.timeBound) / j++;
-			for (i = 0; i < rates.length; i++) {
-				double tmp;
-				tmp = probs[i];
-				probs[i] = -Math.fma(probs[i], rates[i], -probs[i]);
-				probs[i] = Math.fma(nextProb, nextRate, probs[i]);
-				nextProb = tmp;
-				nextRate = rates[i];
-			}
-			reachProb = Math.fma(probs[i - 1], prob, reachProb);
-		} while (undecProb > UNIF_BOUND);
-		cache.put(forCache, reachProb);
-		return reachProb;
 	}
 
-	public void sample()
+	/**
+	 * Simulate one trace.
+	 * @param ret Set to the weighted probability of the trace
+	 * reaching a red state within each time bound, or NaN if it did
+	 * not.
+	 */
+	private void trace(double[] ret)
 	{
 		double timeLeft = prop.timeBound;
 		double likelihood = 1;
@@ -177,28 +187,44 @@ public class ReachabilityTracer extends TraceGenerator
 		        && timeLeft > 0
 		        && likelihood > 0);
 
-		synchronized(this) {
-			N++;
-			if(timeLeft > 0 && prop.isRed(model, state)) {
-				M++;
-				double prob = 1;
-				if (path != null)
-					prob = computeProb(path);
-				sum = Math.fma(prob, likelihood, sum);
-				prob = Math.fma(prob, likelihood, -estMean);
-				sumSquares = Math.fma(prob, prob, sumSquares);
+		int last = props.length - 1;
+		if (timeLeft <= 0 || !prop.isRed(model, state)) {
+			Arrays.fill(ret, Double.NaN);
+		} else if (path != null) {
+			for (int j = 0; j <= last; j++) {
+				double t = props[j].timeBound;
+				ret[j] = likelihood * computeProb(path, t);
 			}
+		} else {
+			double elapsed = prop.timeBound - timeLeft;
+			for (int j = 0; j < last; j++) {
+				if (elapsed <= props[j].timeBound)
+					ret[j] = likelihood;
+				else
+					ret[j] = Double.NaN;
+			}
+			ret[last] = likelihood;
 		}
 	}
 
-	public synchronized SimulationResult getResult(double alpha)
+	public SimulationResult getResult(double alpha)
+	{
+		Statistics snap = new Statistics();
+		int last = props.length - 1;
+		stats[last].snapshot(snap);
+		return getResult(prop, snap, estMeans[last], alpha);
+	}
+
+	private SimulationResult getResult(Property prop, Statistics s,
+	                                   double estMean, double alpha)
 	{
 		long time = getElapsedTime();
+		long N = s.N, M = s.M;
 		if (M == 0) {
 			if (scheme.isBinomial()
 			    && forceBound == Double.POSITIVE_INFINITY)
 			{
-				return binomialCI(alpha, Double.NaN, time);
+				return binomialCI(prop, alpha, Double.NaN, N, M, time);
 			} else {
 				return new SimulationResult(prop, 0, alpha,
 				                            Double.NaN,
@@ -208,13 +234,13 @@ public class ReachabilityTracer extends TraceGenerator
 							    scheme.storedStates());
 			}
 		}
-		double mean = sum / N;
-		double estSum = Math.fma(-N, estMean, sum);
-		double var = Math.fma(-estSum, estSum / N, sumSquares);
+		double mean = s.sum / N;
+		double estSum = Math.fma(-N, estMean, s.sum);
+		double var = Math.fma(-estSum, estSum / N, s.sumSquares);
 		var /= N - 1;
 		SimulationResult ret = null;
 		if (scheme.isBinomial() && forceBound == Double.POSITIVE_INFINITY)
-			ret = binomialCI(alpha, var, time);
+			ret = binomialCI(prop, alpha, var, N, M, time);
 
 		if (ret == null)
 			ret = new SimulationResult(prop, alpha, mean, var, new long[]{N, M}, time, scheme.storedStates());
@@ -223,26 +249,35 @@ public class ReachabilityTracer extends TraceGenerator
 
 	public SimulationResult getResult(TraceGenerator[] ts, double alpha)
 	{
-		sum = 0;
-		N = M = 0;
+		return getResult(ts, alpha, props.length - 1);
+	}
+
+	public SimulationResult[] getResults(TraceGenerator[] ts, double alpha)
+	{
+		SimulationResult[] ret = new SimulationResult[props.length];
+		for (int i = 0; i < props.length; i++)
+			ret[i] = getResult(ts, alpha, i);
+		return ret;
+	}
+
+	/* The result for property i. */
+	private SimulationResult getResult(TraceGenerator[] ts, double alpha,
+	                                   int i)
+	{
+		Statistics total = new Statistics();
+		Statistics snap = new Statistics();
+		double estMean = this.estMeans[i];
 		for (TraceGenerator t : ts) {
 			if (t instanceof ReachabilityTracer) {
 				ReachabilityTracer rt = (ReachabilityTracer)t;
-				synchronized(rt) {
-					if (estMean != rt.estMean) {
-						sum = 0;
-						sumSquares = 0;
-						N = M = 0;
-					}
-					estMean = rt.estMean;
-					sum += rt.sum;
-					sumSquares += rt.sumSquares;
-					N += rt.N;
-					M += rt.M;
-				}
+				rt.stats[i].snapshot(snap);
+				if (estMean != rt.estMeans[i])
+					total.reset();
+				estMean = rt.estMeans[i];
+				total.add(snap);
 			}
 		}
-		return getResult(alpha);
+		return getResult(props[i], total, estMean, alpha);
 	}
 
 	private static long gcd(long a, long b)
@@ -280,12 +315,12 @@ public class ReachabilityTracer extends TraceGenerator
                 return numer / denom;
 	}
 
-	private synchronized SimulationResult binomialCI(double alpha,
-	                                                 double var, long time)
+	private SimulationResult binomialCI(Property prop, double alpha,
+	                                    double var, long N, long M,
+	                                    long time)
 	{
 		double mean, lbound, ubound;
 		boolean inverse = false;
-		long M = this.M;
 		if (M > N / 2) {
 			M = N - M;
 			inverse = true;
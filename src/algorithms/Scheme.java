@@ -1,4 +1,5 @@
 package algorithms;
+import models.AliasTable;
 import models.StateSpace;
 import java.util.Arrays;
 import java.util.Map;
@@ -14,6 +15,9 @@ public class Scheme
 
 	public double[] stateWeightsIS;
 	public double totalStateWeightIS;
+	/** Table for drawing by stateWeightsIS, or null to draw by a
+	 * linear scan. */
+	public AliasTable aliasIS;
 	public StateSpace.State[] neighbours;
 	public double exitRate;
 
@@ -48,11 +52,11 @@ public class Scheme
 			/* There is no other scheme modifying the
 			 * probabilities
 			 */
-			totalStateWeightIS = 0;
-			for (double p : probs)
-				totalStateWeightIS += p;
+			totalStateWeightIS = n.totalProb;
+			aliasIS = n.getAliasTable();
 		} else {
 			totalStateWeightIS = 1;
+			aliasIS = null;
 		}
 		return n;
 	}
@@ -9,23 +9,45 @@ import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.PrimitiveIterator;
 import java.util.Set;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
 import nl.utwente.ewi.fmt.EXPRES.Property;
 
 public class SearchAlgorithm {
-	private Set<State> Lambda;
-	private Set<State> Gamma;
 	private Set<State> nonHPCs = new HashSet<>();
 	private HashMap<State, ArrayList<State>> predecessors;
-	private HashSet<State> neighboursSet = new HashSet<>();
+	private HashSet<State> neighboursSet;
 	private final StateSpace model;
 	private final Property prop;
 	private static final boolean VERBOSE = false;
+	/** Compute HPC exit probabilities by powering dense matrices,
+	 * rather than by sparse elimination. The mean times in HPCs
+	 * still come from the sparse elimination, which is therefore
+	 * done in either case. */
+	public static boolean denseHpcSolver = false;
 
 	private HashMap<State, Integer> dp;
-	public HashMap<State, Integer> d;
+	/** The states of Lambda and Gamma, those of Lambda first. */
+	public StateIndex index;
+	private int nLambda;
+	/** Distance per state of the index. */
+	public int[] d;
+	/** Value per state of the index, once the search has run. */
+	public double[] values;
+
+	/* Reverse edges: the transitions into state x come from the
+	 * states revSources[revOffsets[x]] to
+	 * revSources[revOffsets[x + 1] - 1]. */
+	private int[] revOffsets, revSources;
+	private short[] revOrders;
+	private double[] revProbs;
+	/* Forward edges, in the same form, with the orders of the
+	 * transitions back from their targets. */
+	private int[] fwdOffsets, fwdTargets;
+	private short[] fwdBackOrders;
 
 	private final boolean trace;
 	
@@ -39,13 +61,21 @@ public class SearchAlgorithm {
 		this(m, false, prop);
 	}
 
-	public HashMap<State, Double> runAlgorithm() {
+	/** @return The value of each state of the index. */
+	public double[] runAlgorithm() {
 		dp = new HashMap<>();
 		predecessors = new HashMap<>();
+		neighboursSet = new HashSet<>();
 		forwardPhase();
 		model.cleanupHPCs();
-		HashMap<State, Double> ret = backwardPhase();
+		predecessors = null;
+		buildEdges();
 		dp = null;
+		neighboursSet = null;
+		double[] ret = values = backwardPhase();
+		revOffsets = revSources = fwdOffsets = fwdTargets = null;
+		revOrders = fwdBackOrders = null;
+		revProbs = null;
 		return ret;
 	}
 
@@ -180,69 +210,105 @@ public class SearchAlgorithm {
 		 * HPC, we stay the our new state permanently.
 		 *
 		 * Since the bottom part is constant, we don't bother to
-		 * explicitly store it.
+		 * explicitly store it. TI and TL are stored sparsely, by
+		 * row.
 		 */
 
-		double[][] T = new double[L.length][L.length + D.length];
+		StateIndex lIndex = new StateIndex(L.length);
+		for (State l : L)
+			lIndex.add(l);
+		StateIndex dIndex = new StateIndex(D.length);
+		for (State d : D)
+			dIndex.add(d);
 		short[] orders = new short[D.length];
 		Arrays.fill(orders, Short.MAX_VALUE);
 
-		Ls = null;
-
-		int i = 0;
-		for (State l : L) {
-			int j = 0;
-			for (State z : L)
-				T[i][j++] = l.getProbTo(z);
-			for (j = 0; j < D.length; j++) {
-				State d = D[j];
-				T[i][j + L.length] = l.getProbTo(d);
-				if (T[i][j + L.length] > 0) {
-					short ord = l.getOrderTo(d);
-					if (ord < orders[j])
-						orders[j] = ord;
+		int[] inOffsets = new int[L.length + 1];
+		int[] outOffsets = new int[L.length + 1];
+		int[] inTargets = new int[16], outTargets = new int[16];
+		double[] inProbs = new double[16], outProbs = new double[16];
+		/* Row + 1 in which each column was last seen. */
+		int[] seenL = new int[L.length], seenD = new int[D.length];
+		/* Probability of the transitions not counted. */
+		double[] lost = new double[L.length];
+		int nIn = 0, nOut = 0;
+		for (int i = 0; i < L.length; i++) {
+			Neighbours nb = L[i].getNeighbours();
+			/* Like getProbTo(), only the last transition to
+			 * each state counts. */
+			for (int j = nb.neighbours.length - 1; j >= 0; j--) {
+				State z = nb.neighbours[j];
+				int k = lIndex.indexOf(z);
+				if (k >= 0) {
+					if (seenL[k] == i + 1) {
+						lost[i] += nb.probs[j];
+						continue;
+					}
+					seenL[k] = i + 1;
+					if (nIn == inTargets.length) {
+						inTargets = Arrays.copyOf(inTargets, nIn * 2);
+						inProbs = Arrays.copyOf(inProbs, nIn * 2);
+					}
+					inTargets[nIn] = k;
+					inProbs[nIn++] = nb.probs[j];
+					continue;
 				}
+				k = dIndex.indexOf(z);
+				if (k < 0 || seenD[k] == i + 1) {
+					lost[i] += nb.probs[j];
+					continue;
+				}
+				seenD[k] = i + 1;
+				if (nOut == outTargets.length) {
+					outTargets = Arrays.copyOf(outTargets, nOut * 2);
+					outProbs = Arrays.copyOf(outProbs, nOut * 2);
+				}
+				outTargets[nOut] = k;
+				outProbs[nOut++] = nb.probs[j];
+				if (nb.probs[j] > 0 && nb.orders[j] < orders[k])
+					orders[k] = nb.orders[j];
 			}
-			i++;
+			inOffsets[i + 1] = nIn;
+			outOffsets[i + 1] = nOut;
 		}
-
-		/* To calculate the probabilities of the outgoing states
-		 * from the HPC, we approximate T^inf, and read off the
-		 * right-hand side of that.
-		 * We approximate until we either reach T^MAX_ITS, or
-		 * until the probability masses on the left-hand side
-		 * are sufficiently low.
-		 */
-
-		int MAX_ITS = Integer.MAX_VALUE;
-		solveEventualProbabilities(MAX_ITS, T);
-
-		double[][] meanTimes = null;
-		if (L.length == 2) {
-			/* For 2 we can solve exactly (probably also for
-			 * slightly larger ones but I can't be bothered
-			 * to implement them.
+		seenL = seenD = null;
+
+		/* P[i][j] is the probability of eventually leaving from
+		 * L[i] to D[j]. */
+		double[][] P;
+		/* Also needed for the mean times in dense mode. */
+		SparseReachabilitySolver solv = new SparseReachabilitySolver(
+				L.length, D.length,
+				inOffsets, inTargets, inProbs,
+				outOffsets, outTargets, outProbs, lost);
+		if (denseHpcSolver) {
+			/* Approximate T^inf, and read off the right-hand
+			 * side of that. We approximate until we either
+			 * reach T^MAX_ITS, or until the probability masses
+			 * on the left-hand side are sufficiently low.
 			 */
-			meanTimes = new double[2][D.length];
-			Neighbours nb0 = L[0].getNeighbours();
-			Neighbours nb1 = L[1].getNeighbours();
-			for (i = 0; i < D.length; i++) {
-				double v;
-				double m0 = 1 / nb0.exitRate;
-				double m1 = 1 / nb1.exitRate;
-				double P01 = L[0].getProbTo(L[1]);
-				double P10 = L[1].getProbTo(L[0]);
-				double P0sink = T[0][L.length + i];
-				double P1sink = T[1][L.length + i];
-				v = m0 + P01 * P1sink * m1 / P0sink;
-				v /= (1 - P01 * P10);
-				meanTimes[0][i] = v;
-
-				v = m1 + P10 * P0sink * m0 / P1sink;
-				v /= (1 - P10 * P01);
-				meanTimes[1][i] = v;
+			double[][] T = new double[L.length][L.length + D.length];
+			for (int i = 0; i < L.length; i++) {
+				for (int k = inOffsets[i]; k < inOffsets[i + 1]; k++)
+					T[i][inTargets[k]] = inProbs[k];
+				for (int k = outOffsets[i]; k < outOffsets[i + 1]; k++)
+					T[i][L.length + outTargets[k]] = outProbs[k];
 			}
+			int MAX_ITS = Integer.MAX_VALUE;
+			T = solveEventualProbabilities(MAX_ITS, T);
+			P = new double[L.length][];
+			for (int i = 0; i < L.length; i++)
+				P[i] = Arrays.copyOfRange(T[i], L.length, L.length + D.length);
+		} else {
+			P = solv.solve();
 		}
+
+		/* The mean time spent in the HPC, given where it is left,
+		 * so that it does not have to be simulated. */
+		double[] holdingTimes = new double[L.length];
+		for (int i = 0; i < L.length; i++)
+			holdingTimes[i] = 1 / L[i].getNeighbours().exitRate;
+		double[][] meanTimes = solv.meanTimes(holdingTimes, P);
 		
 		// We then reroute the transitions within the states in L
 		
@@ -254,16 +320,8 @@ public class SearchAlgorithm {
 		if (trace)
 			System.err.println("Minimal order: " + minOrder);
 
-		for (i = 0; i < L.length; i++) {
-			State l = L[i];
-			double[] prbs = new double[D.length];
-			double[] mt = null;
-			if (meanTimes != null)
-				mt = meanTimes[i];
-			for(int j=0;j<D.length;j++)
-				prbs[j] = T[i][L.length + j];
-			model.addHPC(l, D, orders, prbs, mt);
-		}
+		for (int i = 0; i < L.length; i++)
+			model.addHPC(L[i], D, orders, P[i], meanTimes[i]);
 		return true;
 	}
 
@@ -273,34 +331,39 @@ public class SearchAlgorithm {
 		return solv.solve(maxIts);
 	}
 
-	private void startExplorers(LinkedBlockingDeque<Object> q)
+	/* Explore the given states in parallel, so that their
+	 * neighbours are available when they are processed. */
+	private static void prefetch(List<State> states)
 	{
-		int cores = Simulator.coresToUse - 1;
-		Runnable explorer = new Runnable() {
-			public void run() {
-				Object o = null;
-				while (true) {
-					State s;
-					try {
-						o = q.take();
-					} catch (InterruptedException e) {
-					}
-					if (o instanceof State) {
-						((State)o).getNeighbours();
-					} else {
-						q.push(o);
-						return;
-					}
-				}
-			}
-		};
-		for (int i = 0; i < cores; i++)
-			new Thread(explorer).start();
+		if (Simulator.coresToUse <= 1 || states.size() <= 1)
+			return;
+		ForkJoinPool pool = Simulator.getPool(Simulator.coresToUse);
+		pool.submit(() -> states.parallelStream().forEach(State::getNeighbours)).join();
 	}
 
+	/* Add z to the bucket of distance d. */
+	private static void enqueue(TreeMap<Integer, ArrayList<State>> buckets,
+	                            State z, int d)
+	{
+		ArrayList<State> b = buckets.get(d);
+		if (b == null) {
+			b = new ArrayList<>();
+			buckets.put(d, b);
+		}
+		b.add(z);
+	}
+
+	/* Forward search by increasing distance. States at the distance
+	 * currently being processed are handled in rounds: all states
+	 * of a round are explored in parallel, after which they are
+	 * processed in order. Processing may discover states at the
+	 * same distance, which form the next round. States at larger
+	 * distances are kept in buckets by distance, in which a state
+	 * may be stale if its distance has since decreased. */
 	private void forwardPhase() {
-		ArrayDeque<State> current = new ArrayDeque<>();
-		LinkedBlockingDeque<Object> needsExploration = null;
+		ArrayList<State> round = new ArrayList<>();
+		ArrayList<State> nextRound = new ArrayList<>();
+		TreeMap<Integer, ArrayList<State>> buckets = new TreeMap<>();
 		State x = model.getInitialState();
 		predecessors.put(x, new ArrayList<>());
 		dp.put(x, 0);
@@ -309,188 +372,265 @@ public class SearchAlgorithm {
 		HashSet<State> done = new HashSet<>();
 		int dReach = Integer.MAX_VALUE, dCur = 0;
 		State[] skipNeighbours = new State[0];
-
-		if (Simulator.coresToUse > 1) {
-			needsExploration = new LinkedBlockingDeque<>();
-			startExplorers(needsExploration);
-		}
-
-		while(x != null && dCur <= dReach) {
-			Neighbours nbdata = null;
-			State[] nbs = skipNeighbours;
-			if (done.add(x)) {
-				nbdata = findNeighbours(x);
-				nbs = nbdata.neighbours;
-			}
-
-			for (int i = 0; i < nbs.length; i++) {
-				State z = nbs[i];
-				if (z instanceof StateSpace.HPCState)
-					continue;
-				int dZ = dCur + nbdata.orders[i];
-				Integer oldDp = dp.get(z);
-				if (dZ < oldDp)
-					dp.put(z, dZ);
-				else
-					dZ = oldDp;
-				if (dZ == dCur) {
-					if (needsExploration != null)
-						needsExploration.push(z);
-					current.add(z);
+		round.add(x);
+
+		while (!round.isEmpty()) {
+			prefetch(round);
+			for (int r = 0; r < round.size(); r++) {
+				x = model.find(round.get(r));
+				if (trace)
+					System.out.format("fwd (%d): %s\n", dp.get(x), x);
+				Neighbours nbdata = null;
+				State[] nbs = skipNeighbours;
+				if (done.add(x)) {
+					nbdata = findNeighbours(x);
+					nbs = nbdata.neighbours;
 				}
-				if (dZ < dReach && prop.isRed(model, z))
-					dReach = dZ;
-				if (done.contains(z) && dZ == dCur) {
-					/* Possible HPC */
-					if (removeHpc(z)) {
-						x = model.find(x);
-						nbdata = findNeighbours(x);
-						nbs = nbdata.neighbours;
-						i = -1;
+
+				for (int i = 0; i < nbs.length; i++) {
+					State z = nbs[i];
+					if (z instanceof StateSpace.HPCState)
+						continue;
+					int dZ = dCur + nbdata.orders[i];
+					Integer oldDp = dp.get(z);
+					if (dZ < oldDp) {
+						dp.put(z, dZ);
+						if (dZ > dCur)
+							enqueue(buckets, z, dZ);
+					} else {
+						dZ = oldDp;
+					}
+					if (dZ == dCur)
+						nextRound.add(z);
+					if (dZ < dReach && prop.isRed(model, z))
+						dReach = dZ;
+					if (done.contains(z) && dZ == dCur) {
+						/* Possible HPC */
+						if (removeHpc(z)) {
+							x = model.find(x);
+							nbdata = findNeighbours(x);
+							nbs = nbdata.neighbours;
+							i = -1;
+						}
+						if (Simulator.showProgress)
+							System.err.format("\rForward search: %d states (distance %d)", model.size(), dCur);
 					}
-					if (Simulator.showProgress)
-						System.err.format("\rForward search: %d states (distance %d)", model.size(), dCur);
 				}
+				if (Simulator.showProgress && ((dp.size() % 32768) == 0))
+					System.err.format("\rForward search: %d states (distance %d)", dp.size(), dCur);
 			}
-			if (!current.isEmpty()) {
-				x = current.poll();
-			} else {
-				ArrayList<State> toExplore = null;
-				if (needsExploration != null) {
-					toExplore = new ArrayList<>();
-					needsExploration.clear();
+			ArrayList<State> tmp = round;
+			round = nextRound;
+			nextRound = tmp;
+			nextRound.clear();
+			while (round.isEmpty() && !buckets.isEmpty()) {
+				Map.Entry<Integer, ArrayList<State>> e = buckets.pollFirstEntry();
+				dCur = e.getKey();
+				if (dCur > dReach) {
+					buckets.clear();
+					break;
+				}
+				for (State z : e.getValue()) {
+					if (!done.contains(z) && dp.get(z) == dCur)
+						round.add(z);
 				}
-				dCur = dReach;
-				for (State z : dp.keySet()) {
-					if (done.contains(z))
+			}
+		}
+
+		if (Simulator.showProgress)
+			System.err.println("\nForward search completed, explored " + model.size() + " states, minimal distance " + dReach);
+		index = new StateIndex(dp.size());
+		for (Map.Entry<State, Integer> e : dp.entrySet()) {
+			if (e.getValue() <= dReach)
+				index.add(e.getKey());
+		}
+		nLambda = index.size();
+		for (Map.Entry<State, Integer> e : dp.entrySet()) {
+			if (e.getValue() > dReach)
+				index.add(e.getKey());
+		}
+	}
+
+	/* Store the transitions between the states of the index in
+	 * arrays, in both directions. The sources are the states of
+	 * Lambda and the states of Gamma that have been explored.
+	 *
+	 * Orders and probabilities are those State.getOrderTo() and
+	 * State.getProbTo() give for the states as they were found in
+	 * the forward search, so a state replaced by an HPC keeps its
+	 * original transitions. */
+	private void buildEdges() {
+		int n = index.size();
+		int[] offsets = new int[n + 1];
+		int[] targets = new int[Math.max(16, n * 2)];
+		short[] orders = new short[targets.length];
+		short[] backOrders = new short[targets.length];
+		double[] probs = new double[targets.length];
+		int[] revCounts = new int[n + 1];
+		int m = 0;
+		for (int i = 0; i < n; i++) {
+			State s = index.get(i);
+			if (i < nLambda || neighboursSet.contains(s)) {
+				for (State z : s.getNeighbours().neighbours) {
+					int t = index.indexOf(z);
+					if (t < 0)
 						continue;
-					int dZ = dp.get(z);
-					if (dZ < dCur) {
-						if (toExplore != null)
-							toExplore.clear();
-						current.clear();
-						dCur = dZ;
-					}
-					if (dZ == dCur) {
-						if (toExplore != null)
-							toExplore.add(z);
-						current.add(z);
+					if (m == targets.length) {
+						targets = Arrays.copyOf(targets, m * 2);
+						orders = Arrays.copyOf(orders, m * 2);
+						backOrders = Arrays.copyOf(backOrders, m * 2);
+						probs = Arrays.copyOf(probs, m * 2);
 					}
+					State x = index.get(t);
+					targets[m] = t;
+					orders[m] = s.getOrderTo(x);
+					probs[m] = s.getProbTo(x);
+					backOrders[m] = z.getOrderTo(s);
+					m++;
+					revCounts[t + 1]++;
 				}
-				if (toExplore != null)
-					needsExploration.addAll(toExplore);
-				if (current.isEmpty())
-					x = null;
-				else
-					x = current.poll();
 			}
-			if (trace && x != null)
-				System.out.format("fwd (%d): %s\n", dp.get(x), x);
-			if (Simulator.showProgress && ((dp.size() % 32768) == 0))
-				System.err.format("\rForward search: %d states (distance %d)", dp.size(), dCur);
+			offsets[i + 1] = m;
+		}
+		for (int i = 0; i < n; i++)
+			revCounts[i + 1] += revCounts[i];
+		revOffsets = revCounts;
+		revSources = new int[m];
+		revOrders = new short[m];
+		revProbs = new double[m];
+		int[] next = Arrays.copyOf(revOffsets, n);
+		for (int i = 0; i < n; i++) {
+			for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+				int e = next[targets[k]]++;
+				revSources[e] = i;
+				revOrders[e] = orders[k];
+				revProbs[e] = probs[k];
+			}
 		}
+		fwdOffsets = offsets;
+		fwdTargets = Arrays.copyOf(targets, m);
+		fwdBackOrders = Arrays.copyOf(backOrders, m);
+	}
 
-		if (Simulator.coresToUse > 1) {
-			needsExploration.clear();
-			needsExploration.push(0);
+	/* Whether no neighbour of z in Lambda that has not been handled
+	 * can return to z with order 0. */
+	private boolean isSuitable(int z, BitSet handled) {
+		for (int k = fwdOffsets[z]; k < fwdOffsets[z + 1]; k++) {
+			int x = fwdTargets[k];
+			if (x >= nLambda || handled.get(x))
+				continue;
+			if (fwdBackOrders[k] > 0)
+				continue;
+			return false;
 		}
+		return true;
+	}
 
-		if (Simulator.showProgress)
-			System.err.println("\nForward search completed, explored " + model.size() + " states, minimal distance " + dReach);
-		Gamma = new HashSet<State>();
-		Lambda = new HashSet<State>();
-		for (State z : dp.keySet()) {
-			if (dp.get(z) <= dReach)
-				Lambda.add(z);
-			else
-				Gamma.add(z);
+	/* Queue of state indices. */
+	private static class IntQueue {
+		private int[] elems = new int[16];
+		private int head, tail;
+
+		void add(int x) {
+			if (tail == elems.length) {
+				if (head > elems.length / 2) {
+					System.arraycopy(elems, head, elems, 0, tail - head);
+				} else {
+					elems = Arrays.copyOf(elems, elems.length * 2);
+					System.arraycopy(elems, head, elems, 0, tail - head);
+				}
+				tail -= head;
+				head = 0;
+			}
+			elems[tail++] = x;
+		}
+
+		int poll() {
+			return elems[head++];
+		}
+
+		boolean isEmpty() {
+			return head == tail;
+		}
+
+		void clear() {
+			head = tail = 0;
 		}
 	}
 
-	private HashMap<State, Double> backwardPhase() {
-		d = new HashMap<State, Integer>();
-		HashMap<State, Double> v = new HashMap<>();
-		if(trace) System.out.println("-----"+Lambda.size()+", "+Gamma.size());
-		HashSet<State> lambdaP = new HashSet<>();
-		HashSet<State> potentials = new HashSet<>();
-		HashSet<State> redsAndGamma = new HashSet<>();
-		
-		Double one = 1.0;
-		Double zero = 0.0;
-		for (State st : Lambda) {
-			if(prop.isRed(model, st)) {
-				v.put(st, one);
-				d.put(st, 0);
-				redsAndGamma.add(st);
+	private double[] backwardPhase() {
+		int n = index.size();
+		d = new int[n];
+		double[] v = new double[n];
+		if(trace) System.out.println("-----"+nLambda+", "+(n - nLambda));
+		BitSet red = new BitSet(n);
+		BitSet blue = new BitSet(nLambda);
+		BitSet redsAndGamma = new BitSet(n);
+		BitSet potentials = new BitSet(nLambda);
+		BitSet lambdaP = new BitSet(nLambda);
+		/* Blue, red and processed states of Lambda. */
+		BitSet handled = new BitSet(nLambda);
+
+		for (int i = 0; i < nLambda; i++) {
+			State st = index.get(i);
+			if (prop.isRed(model, st)) {
+				v[i] = 1;
+				red.set(i);
+				redsAndGamma.set(i);
+				handled.set(i);
 			} else {
-				v.put(st, zero);
-				d.put(st, Integer.MAX_VALUE);
-				if (!prop.isBlue(model, st))
-					potentials.add(st);
+				d[i] = Integer.MAX_VALUE;
+				if (prop.isBlue(model, st)) {
+					blue.set(i);
+					handled.set(i);
+				} else {
+					potentials.set(i);
+				}
 			}
 		}
 
-		for (State st : Gamma) {
-			d.put(st, 0);
-			v.put(st, one);
-			redsAndGamma.add(st);
+		for (int i = nLambda; i < n; i++) {
+			if (prop.isRed(model, index.get(i)))
+				red.set(i);
+			v[i] = 1;
+			redsAndGamma.set(i);
 		}
-		one = null;
-		if(trace) System.out.println("Reds and Gamma size: "+redsAndGamma.size());
+		if(trace) System.out.println("Reds and Gamma size: "+redsAndGamma.cardinality());
 
 		int counter = 0;
 
 		// first: reds and Gamma
 
-		for (State x : redsAndGamma) {
+		for (int x = redsAndGamma.nextSetBit(0); x >= 0; x = redsAndGamma.nextSetBit(x + 1)) {
 			if (trace) {
-				System.out.println("*  state "+x);
+				System.out.println("*  state "+index.get(x));
 				if(counter % 100 == 0)
-					System.out.println("count: "+counter+": "+x);
+					System.out.println("count: "+counter+": "+index.get(x));
 				counter++;
 			}
 
-			for (State z : predecessors.get(x)) {
-				int dZ = d.get(x) + z.getOrderTo(x);
-				if (dZ < d.get(z)) {
-					v.put(z, zero);
-					d.put(z, dZ);
-				}
-				if(d.get(z) == dZ && !prop.isRed(model, z)) {
-					double vZ = v.get(z);
-					double vX = v.get(x);
-					double pZX = z.getProbTo(x);
-					vZ = Math.fma(vX, pZX, vZ);
-					v.put(z, vZ);
+			for (int k = revOffsets[x]; k < revOffsets[x + 1]; k++) {
+				int z = revSources[k];
+				int dZ = d[x] + revOrders[k];
+				if (dZ < d[z]) {
+					v[z] = 0;
+					d[z] = dZ;
 				}
+				if (d[z] == dZ && !red.get(z))
+					v[z] = Math.fma(v[x], revProbs[k], v[z]);
 			}
 		}
 
-		ArrayDeque<State> currentSuitables = new ArrayDeque<>();
-		HashSet<State> suitables = new HashSet<>();
+		IntQueue currentSuitables = new IntQueue();
+		BitSet suitables = new BitSet(nLambda);
 		int dCur = Integer.MAX_VALUE;
 
-		for (State z : potentials) {
-			if (d.get(z) == Integer.MAX_VALUE)
+		for (int z = potentials.nextSetBit(0); z >= 0; z = potentials.nextSetBit(z + 1)) {
+			if (d[z] == Integer.MAX_VALUE)
 				continue;
-			boolean suitable = true;
-			Neighbours es = findNeighbours(z);
-			for (State x : es.neighbours) {
-				if (!Lambda.contains(x))
-					continue;
-				if (redsAndGamma.contains(x))
-					continue;
-				if (prop.isBlue(model, x))
-					continue;
-				int dXZ = x.getOrderTo(z);
-				if (dXZ > 0)
-					continue;
-				suitable = false;
-				break;
-			}
-			if (suitable) {
-				suitables.add(z);
-				int dZ = d.get(z);
+			if (isSuitable(z, handled)) {
+				suitables.set(z);
+				int dZ = d[z];
 				if (dZ < dCur) {
 					dCur = dZ;
 					currentSuitables.clear();
@@ -507,8 +647,8 @@ public class SearchAlgorithm {
 				dCur = Integer.MAX_VALUE;
 				if (suitables.isEmpty())
 					break;
-				for (State s : suitables) {
-					int dS = d.get(s);
+				for (int s = suitables.nextSetBit(0); s >= 0; s = suitables.nextSetBit(s + 1)) {
+					int dS = d[s];
 					if (dS < dCur) {
 						dCur = dS;
 						currentSuitables.clear();
@@ -517,22 +657,22 @@ public class SearchAlgorithm {
 						currentSuitables.add(s);
 				}
 			}
-			State x = currentSuitables.poll();
+			int x = currentSuitables.poll();
 
 			if (trace) {
-				System.out.println("** state "+x+": d="+d.get(x));
+				System.out.println("** state "+index.get(x)+": d="+d[x]);
 				counter++;
-				//System.out.println("count: "+counter+": "+x);
 			}
-			lambdaP.add(x);
-			suitables.remove(x);
-
-			for (State z : predecessors.get(x)) {
-				//System.out.println(x+", "+z+": "+X.size());
-				int dZ = d.get(x) + z.getOrderTo(x);
-				if (dZ < d.get(z)) {
-					v.put(z, zero);
-					d.put(z, dZ);
+			lambdaP.set(x);
+			handled.set(x);
+			suitables.clear(x);
+
+			for (int k = revOffsets[x]; k < revOffsets[x + 1]; k++) {
+				int z = revSources[k];
+				int dZ = d[x] + revOrders[k];
+				if (dZ < d[z]) {
+					v[z] = 0;
+					d[z] = dZ;
 					if (dZ < dCur) {
 						currentSuitables.clear();
 						dCur = dZ;
@@ -540,32 +680,16 @@ public class SearchAlgorithm {
 					if (dZ == dCur)
 						currentSuitables.add(z);
 				}
-				if (d.get(z) == dZ && !prop.isRed(model, z)) {
-					double vZ = v.get(z);
-					double vX = v.get(x);
-					double pZX = z.getProbTo(x);
-					vZ = Math.fma(vX, pZX, vZ);
-					v.put(z, vZ);
-				}
+				if (d[z] == dZ && !red.get(z))
+					v[z] = Math.fma(v[x], revProbs[k], v[z]);
 
-				if (suitables.contains(z)
-				    || lambdaP.contains(z)
-				    || !potentials.contains(z))
+				if (suitables.get(z)
+				    || lambdaP.get(z)
+				    || !potentials.get(z))
 					continue;
-				boolean suitable = true;
-				for (State xx : z.getNeighbours().neighbours) {
-					if (!Lambda.contains(xx))
-						continue;
-					Neighbours es = xx.getNeighbours();
-					int rxxz = xx.getOrderTo(z);
-					if (!(prop.isBlue(model, xx) || lambdaP.contains(xx) || redsAndGamma.contains(xx) || rxxz > 0)) {
-						suitable = false;
-						break;
-					}
-				}
-				if (suitable) {
-					suitables.add(z);
-					int md = d.get(z);
+				if (isSuitable(z, handled)) {
+					suitables.set(z);
+					int md = d[z];
 					if (md < dCur) {
 						dCur = md;
 						currentSuitables.clear();
@@ -577,10 +701,8 @@ public class SearchAlgorithm {
 		}
 
 		// finallY: reset blue states
-		for(State z : Lambda) {
-			if(prop.isBlue(model, z))
-				v.put(z, zero);
-		}
+		for (int z = blue.nextSetBit(0); z >= 0; z = blue.nextSetBit(z + 1))
+			v[z] = 0;
 		return v;
 	}
 	
@@ -1,10 +1,12 @@
 package algorithms;
 
 import models.StateSpace;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Random;
 import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.LongAdder;
 import nl.utwente.ewi.fmt.EXPRES.Property;
 
@@ -12,6 +14,17 @@ public class Simulator {
 	private final static long MIN_FREE_MEM = 512*1024L*1024L;
 	public final static boolean VERBOSE = false;
 	public final static int REL_ERR_RATE = 8;
+	/* Minimum number of hits before trusting a relative error. */
+	private final static int MIN_HITS = 10;
+	/** Restart the simulations to reach a relative error, rather
+	 * than extending them sequentially. */
+	public static boolean restartRelErr = false;
+	/* Each thread gets several independent streams of traces, so
+	 * that idle workers can steal the streams of slow ones. */
+	private final static int STREAMS_PER_THREAD = 8;
+	private final static long MIN_STREAM_SIMS = 1000;
+	private final static int BATCH_SIZE = 256;
+	private static ForkJoinPool pool;
 	public static int coresToUse;
 	public static boolean showProgress = false;
 	private final StateSpace initialModel;
@@ -19,7 +32,7 @@ public class Simulator {
 	private static final Runtime r = Runtime.getRuntime();
 
 	private TraceGenerator[] currentGenerators;
-	private SimulationResult lastResult;
+	private SimulationResult[] lastResults;
 	
 	static {
 		coresToUse = Runtime.getRuntime().availableProcessors();
@@ -37,19 +50,35 @@ public class Simulator {
 
 	private static class ProgressPrinter extends Thread {
 		private final long maxN;
+		private final long deadline;
 		private final LongAdder done;
 		private final long initialTime;
 
 		public ProgressPrinter(long N) {
+			this(N, 0);
+		}
+		/** Show progress towards the deadline (in ms) if
+		 * nonzero, otherwise towards N simulations. */
+		public ProgressPrinter(long N, long deadline) {
 			maxN = N;
+			this.deadline = deadline;
 			done = new LongAdder();
 			initialTime = System.currentTimeMillis();
 		}
 		private boolean printLine() {
 			long d = done.sum();
-			if (d == 0)
+			long now = System.currentTimeMillis();
+			long elapsed = now - initialTime;
+			double frac = 0;
+			if (maxN > 0)
+				frac = d / (double)maxN;
+			if (deadline > 0) {
+				double t = elapsed / (double)(deadline - initialTime);
+				frac = Math.min(1, Math.max(frac, t));
+			}
+			if (frac == 0)
 				return false;
-			int perc = (int)((d * 50) / maxN);
+			int perc = (int)(frac * 50);
 			System.err.print("\r");
 			for (int i = 0; i < perc; i++) {
 				if (i % 5 == 0)
@@ -57,25 +86,23 @@ public class Simulator {
 				else
 					System.err.print(".");
 			}
-			long now = System.currentTimeMillis();
-			long elapsed = now - initialTime;
-			int secsLeft = (int)(elapsed * (maxN / (double)d - 1));
+			int secsLeft = (int)(elapsed * (1 / frac - 1));
 			secsLeft /= 1000;
 			int minsLeft = secsLeft / 60;
 			secsLeft -= minsLeft * 60;
 			int hoursLeft = minsLeft / 60;
 			minsLeft -= hoursLeft * 60;
 			long mem = getMemUsed();
-			if (d != maxN) {
-				System.err.format (" (est. %d:%02d:%02d remaining, used %d MB)", hoursLeft, minsLeft, secsLeft, mem / 1048576);
+			if (frac < 1) {
+				System.err.format (" (est. %d:%02d:%02d remaining, %d runs, used %d MB)", hoursLeft, minsLeft, secsLeft, d, mem / 1048576);
 				return false;
 			} else {
 				System.err.println("Done                     ");
 				return true;
 			}
 		}
-		public void doneOne() {
-			done.increment();
+		public void done(long n) {
+			done.add(n);
 		}
 		public void run() {
 			while (!printLine()) {
@@ -108,156 +135,296 @@ public class Simulator {
 		initialModel = gen.scheme.model;
 	}
 
-	private TraceGenerator[] multiCoreSim(long maxN, int threads)
+	/**
+	 * Simulate several reachability properties, differing only in
+	 * their time bounds (in increasing order), in the same traces.
+	 */
+	public Simulator(Random rng, Property[] props, Scheme scheme,
+	                 double forcingBound)
+	{
+		gen = new ReachabilityTracer(rng, scheme, props, forcingBound);
+		initialModel = gen.scheme.model;
+	}
+
+	static synchronized ForkJoinPool getPool(int threads)
+	{
+		if (pool == null || pool.getParallelism() != threads) {
+			if (pool != null)
+				pool.shutdown();
+			pool = new ForkJoinPool(threads);
+		}
+		return pool;
+	}
+
+	/**
+	 * Number of generator streams to use for maxN simulations.
+	 * Only depends on maxN and the number of threads, so that
+	 * results are reproducible for a given seed.
+	 */
+	private static int numStreams(long maxN, int threads)
+	{
+		if (threads <= 1)
+			return 1;
+		long ret = maxN / MIN_STREAM_SIMS;
+		if (ret > threads * STREAMS_PER_THREAD)
+			ret = threads * STREAMS_PER_THREAD;
+		if (ret < threads)
+			ret = threads;
+		return (int)ret;
+	}
+
+	/**
+	 * Runs the simulations of streams [lo, hi), splitting the
+	 * range so idle workers can steal part of it.
+	 *
+	 * Either each stream runs its quota, or (if quota is null)
+	 * all streams run until the deadline (in System.nanoTime()) has
+	 * passed or the (optional) shared budget of runs is used up.
+	 */
+	private static class SimTask extends RecursiveAction {
+		private static final long serialVersionUID = 1;
+		private final TraceGenerator[] gens;
+		private final long[] quota;
+		private final long deadline;
+		private final AtomicLong budget;
+		private final int lo, hi;
+		private final ProgressPrinter progress;
+
+		public SimTask(TraceGenerator[] gens, long[] quota,
+		               int lo, int hi, ProgressPrinter progress)
+		{
+			this(gens, quota, 0, null, lo, hi, progress);
+		}
+
+		public SimTask(TraceGenerator[] gens, long[] quota,
+		               long deadline, AtomicLong budget,
+		               int lo, int hi, ProgressPrinter progress)
+		{
+			this.gens = gens;
+			this.quota = quota;
+			this.deadline = deadline;
+			this.budget = budget;
+			this.lo = lo;
+			this.hi = hi;
+			this.progress = progress;
+		}
+
+		/** Claim up to n runs from the budget. */
+		private int claim(int n)
+		{
+			if (budget == null)
+				return n;
+			long left;
+			do {
+				left = budget.get();
+				if (left < n)
+					n = (int)left;
+			} while (n > 0 && !budget.compareAndSet(left, left - n));
+			return n;
+		}
+
+		private void runUntilDeadline(TraceGenerator gen)
+		{
+			/* Grow the batches while they are short, so
+			 * that we do not overshoot the deadline by much
+			 * even for long traces. */
+			int batch = 1;
+			long now = System.nanoTime();
+			while (now - deadline < 0) {
+				int n = claim(batch);
+				if (n == 0)
+					break;
+				gen.sampleBatch(n);
+				progress.done(n);
+				long prev = now;
+				now = System.nanoTime();
+				if (now - prev < 10000000 && batch < BATCH_SIZE)
+					batch *= 2;
+			}
+		}
+
+		protected void compute()
+		{
+			if (hi - lo > 1) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new SimTask(gens, quota, deadline, budget, lo, mid, progress),
+				          new SimTask(gens, quota, deadline, budget, mid, hi, progress));
+				return;
+			}
+			TraceGenerator gen = gens[lo];
+			if (quota == null) {
+				runUntilDeadline(gen);
+				return;
+			}
+			long left = quota[lo];
+			while (left > 0) {
+				int n = (int)Math.min(left, BATCH_SIZE);
+				gen.sampleBatch(n);
+				left -= n;
+				progress.done(n);
+			}
+		}
+	}
+
+	private TraceGenerator[] newGenerators(int streams)
 	{
-		TraceGenerator[] ret = new TraceGenerator[threads];
-		for (int i = 0; i < threads; i++)
+		TraceGenerator[] ret = new TraceGenerator[streams];
+		for (int i = 0; i < streams; i++)
 			ret[i] = gen.copy();
 		synchronized(this) {
 			currentGenerators = ret;
 		}
-		if (maxN == 0)
-			return ret;
+		return ret;
+	}
+
+	/**
+	 * Run maxN more simulations, divided over the given generators.
+	 */
+	private static void runStreams(TraceGenerator[] gens, long maxN,
+	                               int threads)
+	{
+		int streams = gens.length;
 		ProgressPrinter p;
 		if (showProgress) {
 			p = new ProgressPrinter(maxN);
 		} else {
 			p = new ProgressPrinter(Long.MAX_VALUE) {
-				public void doneOne() { }
+				public void done(long n) { }
 				public void run() { }
 			};
 		}
-		final ProgressPrinter progress = p;
-
-		class Tracer implements Runnable {
-			public final TraceGenerator gen;
-			public final long N;
-			public Tracer(TraceGenerator g, long nSims) {
-				gen = g;
-				N = nSims;
-			}
-			public void run() {
-				for (long i = 0; i < N; i++) {
-					gen.sample();
-					p.doneOne();
-				}
-			}
-		}
 
+		long[] quota = new long[streams];
+		long nLeft = maxN;
+		for (int i = 0; i < streams; i++) {
+			quota[i] = nLeft / (streams - i);
+			nLeft -= quota[i];
+		}
+		SimTask task = new SimTask(gens, quota, 0, streams, p);
 		if (threads > 1) {
-			Thread[] ts = new Thread[threads];
-			long nLeft = maxN;
-			for (int i = 0; i < threads; i++) {
-				long ourN = nLeft / (threads - i);
-				nLeft -= ourN;
-				ts[i] = new Thread(new Tracer(ret[i], ourN));
-				ts[i].start();
-			}
 			p.start();
-			for (int i = 0; i < threads; i++) {
-				try {
-					ts[i].join();
-				} catch (InterruptedException e) {
-					i--;
-				}
-			}
+			getPool(threads).invoke(task);
 			p.interrupt();
 			try {
 				p.join();
 			} catch (InterruptedException e) {
 			}
 		} else {
-			new Tracer(ret[0], maxN).run();
+			task.compute();
 		}
+	}
+
+	private TraceGenerator[] multiCoreSim(long maxN, int threads)
+	{
+		TraceGenerator[] ret;
+		ret = newGenerators(numStreams(maxN, threads));
+		if (maxN > 0)
+			runStreams(ret, maxN, threads);
 		return ret;
 	}
 
 	/**
-	 * Get the current best estimate even if simulations are still
-	 * running.
+	 * Get the current best estimates of all properties being
+	 * simulated (as simAll()), even if simulations are still running.
 	 */
-	public synchronized SimulationResult getCurrentEstimate(double alpha)
+	public synchronized SimulationResult[] getCurrentEstimates(double alpha)
 	{
 		if (currentGenerators != null)
-			return gen.getResult(currentGenerators, alpha);
-		return lastResult;
+			return gen.getResults(currentGenerators, alpha);
+		return lastResults;
+	}
+
+	/**
+	 * Run simulations on all generators until the deadline (in
+	 * System.nanoTime()) has passed, or maxN runs have been done if
+	 * maxN is nonzero.
+	 */
+	private static void runUntil(TraceGenerator[] gens, long deadline,
+	                             long maxN, int threads)
+	{
+		ProgressPrinter p;
+		if (showProgress) {
+			long msec = (deadline - System.nanoTime()) / 1000000;
+			p = new ProgressPrinter(maxN, System.currentTimeMillis() + msec);
+		} else {
+			p = new ProgressPrinter(Long.MAX_VALUE) {
+				public void done(long n) { }
+				public void run() { }
+			};
+		}
+		AtomicLong budget = null;
+		if (maxN > 0)
+			budget = new AtomicLong(maxN);
+		SimTask task = new SimTask(gens, null, deadline, budget,
+		                           0, gens.length, p);
+		if (threads > 1) {
+			p.start();
+			getPool(threads).invoke(task);
+			p.interrupt();
+			try {
+				p.join();
+			} catch (InterruptedException e) {
+			}
+		} else {
+			task.compute();
+		}
 	}
 
 	/**
 	 * Compute a (1-alpha) confidence interval for the value of the
-	 * property, not exceeding maxN simulations (for the actual
-	 * estimation, more samples may be taken for time estimation),
-	 * and taking at most approximately msec milliseconds.
+	 * property, not exceeding maxN simulations, and (if msec is
+	 * nonzero) stopping when msec milliseconds have passed.
 	 */
 	public SimulationResult sim(int msec, long maxN, double alpha)
 	{
-		long start = System.currentTimeMillis();
+		TraceGenerator ts[] = run(msec, maxN);
+		SimulationResult ret = gen.getResult(ts, alpha);
+		synchronized(this) {
+			lastResults = new SimulationResult[]{ret};
+			currentGenerators = null;
+		}
+		return ret;
+	}
 
-		if (maxN == 0)
-			maxN = Long.MAX_VALUE;
-		/* For time bounds, start by estimating the number of
-		 * simulations we can run.
-		 */
-		if (msec > 0) {
-			long N = 0;
-
-			/* Do our stuff in a separate TG so that later
-			 * calls explicitly specifying the same number
-			 * of runs will produce the same result.
-			 */
-			TraceGenerator tg = gen.copy();
-			tg.reseedRNG(System.nanoTime());
-			/* Spend 1% of time to estimate number of runs. */
-			long trialSimTime = start + msec / 100;
-			while (System.currentTimeMillis() < trialSimTime) {
-				tg.sample();
-				N++;
-			}
+	/**
+	 * As sim(), but return the results of all properties being
+	 * simulated.
+	 */
+	public SimulationResult[] simAll(int msec, long maxN, double alpha)
+	{
+		TraceGenerator ts[] = run(msec, maxN);
+		SimulationResult[] ret = gen.getResults(ts, alpha);
+		synchronized(this) {
+			lastResults = ret;
+			currentGenerators = null;
+		}
+		return ret;
+	}
+
+	private TraceGenerator[] run(int msec, long maxN)
+	{
+		TraceGenerator ts[];
 
+		if (msec > 0) {
+			long deadline = System.nanoTime() + msec * 1000000L;
 			if (showProgress)
-				System.err.println("Estimating simulation rate.");
-			/* Spend about another 1% estimating the time
-			 * after caching and without constant time
-			 * measurements. */
-			N *= coresToUse;
-			long startExact = System.nanoTime();
-			TraceGenerator[] gens = multiCoreSim(N, coresToUse);
-			gens = Arrays.copyOf(gens, gens.length + 1);
-			gens[gens.length - 1] = tg;
-			long exactTime = System.nanoTime() - startExact;
-			gen.resetAndEstimateMeans(gens);
-			msec -= (System.currentTimeMillis() - start);
-			N = (long)((msec * (1000000.0 * N)) / exactTime);
-			if (N < maxN)
-				maxN = N;
+				System.err.format("\nWill simulate for %d seconds.\n", msec / 1000);
+			/* One stream per thread, as all of them run
+			 * until the deadline. */
+			ts = newGenerators(coresToUse);
+			runUntil(ts, deadline, maxN, coresToUse);
 		} else {
-			/* Adjust the RNG to match the one that would
-			 * have been produced by the timed version of
-			 * the call.
-			 */
-			gen.copy();
-			multiCoreSim(0, coresToUse);
-			/* Note: This is not entirely deterministic, as
-			 * we do not yet have an estimate of the mean to
-			 * reduce the rounding error in the variance.
-			 * Thus, our point estimate will be identical,
-			 * but our confidence interval will not.
-			 */
+			if (maxN == 0)
+				maxN = Long.MAX_VALUE;
+			if (showProgress)
+				System.err.format("\nWill run %d simulations.\n", maxN);
+			ts = multiCoreSim(maxN, coresToUse);
 		}
-		if (showProgress)
-			System.err.format("\nWill run %d simulations.\n", maxN);
-
-		TraceGenerator ts[] = multiCoreSim(maxN, coresToUse);
 		if (showProgress)
 			System.err.println();
 		if (VERBOSE)
 			System.err.println("End size: "+gen.scheme.model.size());
-		SimulationResult ret = gen.getResult(ts, alpha);
-		synchronized(this) {
-			lastResult = ret;
-			currentGenerators = null;
-		}
-		return ret;
+		return ts;
 	}
 
 	public SimulationResult simUnsafeRelErr(double err, double alpha)
@@ -281,7 +448,93 @@ public class Simulator {
 		return result;
 	}
 
+	/**
+	 * Simulate until the (1-alpha) confidence interval has a
+	 * relative half-width of at most err.
+	 *
+	 * The same generators keep running between checkpoints, the
+	 * k-th checkpoint computing an interval at confidence level
+	 * 1-alpha/(k(k+1)). By the union bound, all these intervals
+	 * (and thus their intersection) hold simultaneously with
+	 * probability at least 1-alpha.
+	 */
 	public SimulationResult simRelErr(double err, double alpha, long limitN)
+	{
+		if (restartRelErr)
+			return simRelErrRestarts(err, alpha, limitN);
+		int initSize = gen.scheme.model.size();
+		long startTime = System.nanoTime();
+		TraceGenerator[] gens;
+		gens = newGenerators(numStreams(Long.MAX_VALUE, coresToUse));
+		double lbound = 0, ubound = Double.POSITIVE_INFINITY;
+		double mean, curRelErr;
+		long N = 0, targetN = 10000 * coresToUse;
+		SimulationResult result;
+		int k = 0;
+
+		do {
+			k++;
+			if (limitN > 0 && targetN > limitN)
+				targetN = limitN;
+			runStreams(gens, targetN - N, coresToUse);
+			N = targetN;
+			double curAlpha = alpha / (k * (k + 1.0));
+			result = gen.getResult(gens, curAlpha);
+			if (result.M > 0) {
+				if (result.lbound > lbound)
+					lbound = result.lbound;
+				if (result.ubound < ubound)
+					ubound = result.ubound;
+				if (ubound < lbound) {
+					lbound = result.lbound;
+					ubound = result.ubound;
+				}
+			}
+			mean = (ubound + lbound) / 2;
+			curRelErr = (ubound - lbound) / 2 / mean;
+			if (showProgress) {
+				System.err.format("Checkpoint %d, alpha %g\n", k, curAlpha);
+				System.err.format("Relative error %e after %d simulations\n", curRelErr, result.N);
+				System.err.format("Current estimate: [%g; %g]\n", lbound, ubound);
+			}
+			if (limitN > 0 && N >= limitN)
+				break;
+			if (result.M < MIN_HITS || lbound == 0) {
+				/* Too few hits for a reasonable estimate */
+				targetN = N * 10;
+				continue;
+			}
+			/* Estimate number of samples needed to reach the
+			 * desired error at the next checkpoint, with a
+			 * little margin to avoid extra checkpoints. */
+			double Z = SimulationResult.CIwidth(alpha / ((k + 1) * (k + 2.0)));
+			double rm = err * result.mean;
+			long newN = (long)(1.2 * result.var * Z * Z / (rm * rm));
+			if (newN < N + N / 4)
+				newN = N + N / 4;
+			if (newN > N * 10)
+				newN = N * 10;
+			targetN = newN;
+		} while (curRelErr > err || result.M < MIN_HITS);
+
+		long exactTime = System.nanoTime() - startTime;
+		SimulationResult ret = new SimulationResult(gen.prop, mean,
+				alpha, result.var, lbound, ubound,
+				new long[]{result.N, result.M}, exactTime,
+				initSize);
+		synchronized(this) {
+			lastResults = new SimulationResult[]{ret};
+			currentGenerators = null;
+		}
+		return ret;
+	}
+
+	/**
+	 * As simRelErr, but restarting the simulations with more runs
+	 * until the relative error is reached.
+	 */
+	private SimulationResult simRelErrRestarts(double err, double alpha,
+	                                           long limitN)
 	{
 		if (REL_ERR_RATE <= 0)
 			return simUnsafeRelErr(err, alpha);
@@ -0,0 +1,336 @@
+package algorithms;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * Computes where a set of transient states (such as an HPC) is left:
+ * for every state, the probability of eventually leaving to each
+ * destination, i.e. (I - TI)^-1 TL for the internal transition matrix
+ * TI and the leaving transition matrix TL, both given sparsely.
+ *
+ * The system is solved directly by eliminating the states one by one
+ * (sparse Gaussian elimination), picking next the state whose
+ * elimination creates the fewest new transitions. As in the GTH
+ * algorithm, the probability of leaving a state is taken to be the sum
+ * of its remaining transitions to other states and out of the set,
+ * rather than one minus its self-loop, so there is no cancellation
+ * however rarely the set is left. The elimination is done once, and
+ * reused for every right-hand side.
+ *
+ * The same systems, with other right-hand sides, give the mean time
+ * until leaving to each destination.
+ */
+public class SparseReachabilitySolver
+{
+	private final int n, m;
+	private final int[] outOffsets, outTargets;
+	private final double[] outProbs;
+
+	/* Internal transitions of the states not yet eliminated, without
+	 * self-loops; once a state is eliminated, its transitions at that
+	 * moment (all to states eliminated later). */
+	private final int[][] rowTargets;
+	private final double[][] rowProbs;
+	private final int[] rowSize;
+	/* The states with transitions to each state; once a state is
+	 * eliminated, those at that moment, with the probabilities of
+	 * their transitions to it in predProbs. */
+	private final int[][] preds;
+	private final double[][] predProbs;
+	private final int[] predSize;
+	/* Probability of leaving the remaining states other than by
+	 * their internal transitions. */
+	private final double[] exits;
+	/* Elimination order, and the probability of leaving each state
+	 * (other than to itself) when it was eliminated. */
+	private final int[] order;
+	private final double[] denoms;
+
+	/**
+	 * The internal transitions of state i go to states
+	 * inTargets[inOffsets[i]] to inTargets[inOffsets[i + 1] - 1],
+	 * with the probabilities in inProbs. Its leaving transitions go
+	 * to the destinations in outTargets in the same way. The
+	 * probabilities of every state should sum to one, except for
+	 * the probability in lost (if not null) of transitions that are
+	 * not counted.
+	 *
+	 * @param nStates The number of states.
+	 * @param nDests The number of destinations.
+	 */
+	public SparseReachabilitySolver(int nStates, int nDests,
+	                                int[] inOffsets, int[] inTargets,
+	                                double[] inProbs,
+	                                int[] outOffsets, int[] outTargets,
+	                                double[] outProbs, double[] lost)
+	{
+		n = nStates;
+		m = nDests;
+		this.outOffsets = outOffsets;
+		this.outTargets = outTargets;
+		this.outProbs = outProbs;
+		rowTargets = new int[n][];
+		rowProbs = new double[n][];
+		rowSize = new int[n];
+		preds = new int[n][];
+		predProbs = new double[n][];
+		predSize = new int[n];
+		exits = new double[n];
+		order = new int[n];
+		denoms = new double[n];
+
+		int[] where = new int[n];
+		Arrays.fill(where, -1);
+		for (int i = 0; i < n; i++) {
+			int size = 0;
+			int[] ts = new int[inOffsets[i + 1] - inOffsets[i]];
+			double[] ps = new double[ts.length];
+			for (int k = inOffsets[i]; k < inOffsets[i + 1]; k++) {
+				int t = inTargets[k];
+				if (t == i)
+					continue;
+				if (where[t] >= 0) {
+					ps[where[t]] += inProbs[k];
+					continue;
+				}
+				where[t] = size;
+				ts[size] = t;
+				ps[size++] = inProbs[k];
+			}
+			for (int k = 0; k < size; k++) {
+				where[ts[k]] = -1;
+				addPred(ts[k], i);
+			}
+			rowTargets[i] = ts;
+			rowProbs[i] = ps;
+			rowSize[i] = size;
+			for (int k = outOffsets[i]; k < outOffsets[i + 1]; k++)
+				exits[i] += outProbs[k];
+			if (lost != null)
+				exits[i] += lost[i];
+		}
+		eliminate(where);
+	}
+
+	private void addPred(int t, int u)
+	{
+		int[] ps = preds[t];
+		if (ps == null)
+			preds[t] = ps = new int[4];
+		else if (predSize[t] == ps.length)
+			preds[t] = ps = Arrays.copyOf(ps, ps.length * 2);
+		ps[predSize[t]++] = u;
+	}
+
+	private void removePred(int t, int u)
+	{
+		int[] ps = preds[t];
+		int size = predSize[t];
+		for (int i = 0; i < size; i++) {
+			if (ps[i] == u) {
+				ps[i] = ps[--size];
+				predSize[t] = size;
+				return;
+			}
+		}
+	}
+
+	/* Number of transitions (at most) created by eliminating s. */
+	private long cost(int s)
+	{
+		return (long)predSize[s] * rowSize[s];
+	}
+
+	/* Eliminate all states, where is all -1 and of length n. */
+	private void eliminate(int[] where)
+	{
+		/* Entries are (cost << 32) | state, and outdated when the
+		 * cost of the state has changed since. */
+		PriorityQueue<Long> queue = new PriorityQueue<>();
+		boolean[] done = new boolean[n];
+		for (int s = 0; s < n; s++)
+			queue.add((Math.min(cost(s), Integer.MAX_VALUE) << 32) | s);
+		int next = 0;
+		while (next < n) {
+			long e = queue.poll();
+			int v = (int)e;
+			if (done[v] || (e >>> 32) != Math.min(cost(v), Integer.MAX_VALUE))
+				continue;
+			done[v] = true;
+			order[next++] = v;
+
+			int[] vt = rowTargets[v];
+			double[] vp = rowProbs[v];
+			int vs = rowSize[v];
+			double d = exits[v];
+			for (int i = 0; i < vs; i++) {
+				d += vp[i];
+				removePred(vt[i], v);
+			}
+			denoms[v] = d;
+			rowTargets[v] = Arrays.copyOf(vt, vs);
+			rowProbs[v] = Arrays.copyOf(vp, vs);
+
+			int ps = predSize[v];
+			int[] pu = ps == 0 ? new int[0] : Arrays.copyOf(preds[v], ps);
+			double[] pa = new double[ps];
+			for (int j = 0; j < ps; j++) {
+				int u = pu[j];
+				int[] ut = rowTargets[u];
+				double[] up = rowProbs[u];
+				int us = rowSize[u];
+				/* Remove the transition from u to v. */
+				for (int i = 0; i < us; i++) {
+					if (ut[i] == v) {
+						pa[j] = up[i];
+						us--;
+						ut[i] = ut[us];
+						up[i] = up[us];
+						break;
+					}
+				}
+				/* If v is never left, neither is that part
+				 * of the probability of u. */
+				if (d == 0) {
+					exits[u] += pa[j];
+					rowSize[u] = us;
+					continue;
+				}
+				double f = pa[j] / d;
+				exits[u] = Math.fma(f, exits[v], exits[u]);
+				for (int i = 0; i < us; i++)
+					where[ut[i]] = i;
+				for (int i = 0; i < vs; i++) {
+					int w = vt[i];
+					if (w == u)
+						continue;
+					int k = where[w];
+					if (k >= 0) {
+						up[k] = Math.fma(f, vp[i], up[k]);
+						continue;
+					}
+					if (us == ut.length) {
+						int len = Math.max(4, us * 2);
+						ut = rowTargets[u] = Arrays.copyOf(ut, len);
+						up = rowProbs[u] = Arrays.copyOf(up, len);
+					}
+					where[w] = us;
+					ut[us] = w;
+					up[us++] = f * vp[i];
+					addPred(w, u);
+				}
+				for (int i = 0; i < us; i++)
+					where[ut[i]] = -1;
+				rowSize[u] = us;
+			}
+			preds[v] = pu;
+			predProbs[v] = pa;
+			predSize[v] = ps;
+
+			for (int u : pu)
+				queue.add((Math.min(cost(u), Integer.MAX_VALUE) << 32) | u);
+			for (int i = 0; i < vs; i++) {
+				int w = vt[i];
+				queue.add((Math.min(cost(w), Integer.MAX_VALUE) << 32) | w);
+			}
+		}
+	}
+
+	/** @return For every state, the probability of leaving to each
+	 * destination. */
+	public double[][] solve()
+	{
+		double[][] b = new double[n][m];
+		for (int i = 0; i < n; i++)
+			for (int k = outOffsets[i]; k < outOffsets[i + 1]; k++)
+				b[i][outTargets[k]] += outProbs[k];
+		return solve(b);
+	}
+
+	/**
+	 * Compute the mean time until leaving, given the destination.
+	 *
+	 * @param holdingTimes The mean time spent in each state per
+	 * visit.
+	 * @param probs The leaving probabilities, as returned by
+	 * solve().
+	 * @return For every state, the mean time until leaving to each
+	 * destination if it is left to that destination (or 0 if it
+	 * never is).
+	 */
+	public double[][] meanTimes(double[] holdingTimes, double[][] probs)
+	{
+		/* The mean time until leaving to d, counted only on the
+		 * paths that do, satisfies H = TI H + diag(holdingTimes)
+		 * probs. */
+		double[][] rhs = new double[n][m];
+		for (int i = 0; i < n; i++)
+			for (int j = 0; j < m; j++)
+				rhs[i][j] = holdingTimes[i] * probs[i][j];
+		double[][] ret = solve(rhs);
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < m; j++) {
+				if (probs[i][j] > 0)
+					ret[i][j] /= probs[i][j];
+				else
+					ret[i][j] = 0;
+			}
+		}
+		return ret;
+	}
+
+	/* Solve X = TI X + b using the elimination, overwriting b with
+	 * the solution. */
+	private double[][] solve(double[][] b)
+	{
+		boolean[] zero = new boolean[n];
+		for (int i = 0; i < n; i++) {
+			zero[i] = true;
+			for (double x : b[i]) {
+				if (x != 0) {
+					zero[i] = false;
+					break;
+				}
+			}
+		}
+		/* Apply the eliminations to the right-hand side. */
+		for (int k = 0; k < n; k++) {
+			int v = order[k];
+			double d = denoms[v];
+			if (d == 0 || zero[v])
+				continue;
+			double[] bv = b[v];
+			int[] pu = preds[v];
+			double[] pa = predProbs[v];
+			for (int j = 0; j < pu.length; j++) {
+				double f = pa[j] / d;
+				double[] bu = b[pu[j]];
+				for (int i = 0; i < m; i++)
+					bu[i] = Math.fma(f, bv[i], bu[i]);
+				zero[pu[j]] = false;
+			}
+		}
+		/* Substitute back, in reverse order of elimination. */
+		for (int k = n - 1; k >= 0; k--) {
+			int v = order[k];
+			double d = denoms[v];
+			double[] xv = b[v];
+			if (d == 0) {
+				Arrays.fill(xv, 0);
+				continue;
+			}
+			int[] vt = rowTargets[v];
+			double[] vp = rowProbs[v];
+			for (int i = 0; i < vt.length; i++) {
+				double p = vp[i];
+				double[] xw = b[vt[i]];
+				for (int j = 0; j < m; j++)
+					xv[j] = Math.fma(p, xw[j], xv[j]);
+			}
+			for (int j = 0; j < m; j++)
+				xv[j] /= d;
+		}
+		return b;
+	}
+}
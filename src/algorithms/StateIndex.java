@@ -0,0 +1,96 @@
+package algorithms;
+
+import java.util.Arrays;
+import models.StateSpace.State;
+
+/**
+ * Assigns dense indices 0, 1, ... to states, in the order in which
+ * they are added. States are identified by their vectors, so an HPC
+ * state has the same index as the state it replaced.
+ */
+public final class StateIndex
+{
+	private State[] states;
+	/* Open addressing with linear probing, holding index + 1 (0 for
+	 * an empty slot). */
+	private int[] table;
+	private int size;
+
+	public StateIndex()
+	{
+		this(16);
+	}
+
+	/** @param expected The number of states expected to be added. */
+	public StateIndex(int expected)
+	{
+		states = new State[Math.max(expected, 16)];
+		int cap = 32;
+		while (cap < states.length * 2)
+			cap *= 2;
+		table = new int[cap];
+	}
+
+	private static int spread(int h)
+	{
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/** The index of s, or -1 if it has none. */
+	public int indexOf(State s)
+	{
+		int mask = table.length - 1;
+		for (int i = spread(s.hashCode()) & mask; ; i = (i + 1) & mask) {
+			int e = table[i];
+			if (e == 0)
+				return -1;
+			if (states[e - 1].equals(s))
+				return e - 1;
+		}
+	}
+
+	/** Return the index of s, assigning the next one if it has
+	 * none. */
+	public int add(State s)
+	{
+		int mask = table.length - 1;
+		int i = spread(s.hashCode()) & mask;
+		for (; table[i] != 0; i = (i + 1) & mask) {
+			if (states[table[i] - 1].equals(s))
+				return table[i] - 1;
+		}
+		if (size == states.length)
+			states = Arrays.copyOf(states, size * 2);
+		states[size] = s;
+		table[i] = ++size;
+		if (size * 2 > table.length)
+			rehash();
+		return size - 1;
+	}
+
+	private void rehash()
+	{
+		table = new int[table.length * 2];
+		int mask = table.length - 1;
+		for (int k = 0; k < size; k++) {
+			int i = spread(states[k].hashCode()) & mask;
+			while (table[i] != 0)
+				i = (i + 1) & mask;
+			table[i] = k + 1;
+		}
+	}
+
+	/** The state with index i, as it was added. */
+	public State get(int i)
+	{
+		if (i >= size)
+			throw new IndexOutOfBoundsException(i);
+		return states[i];
+	}
+
+	public int size()
+	{
+		return size;
+	}
+}
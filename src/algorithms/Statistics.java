@@ -0,0 +1,105 @@
+package algorithms;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/* Padding around the counters, so that the statistics of different
+ * generators never share a cache line.
+ */
+abstract class StatisticsPadBefore {
+	long p00, p01, p02, p03, p04, p05, p06, p07;
+}
+
+abstract class StatisticsFields extends StatisticsPadBefore {
+	volatile long version;
+	long N;
+	long M;
+	double sum;
+	double sumSquares;
+	double sumAux;
+	double sumAuxSquares;
+	/* Number of auxiliary samples, if not all samples have one. */
+	long NAux;
+	boolean hasDeadlocks;
+}
+
+/**
+ * Running sums of the samples drawn by one trace generator.
+ *
+ * The counters have a single writer (the thread running the
+ * generator), which brackets its updates in beginWrite() and
+ * endWrite(). Any other thread can take a consistent snapshot at any
+ * time without locking out the writer.
+ */
+public final class Statistics extends StatisticsFields {
+	long p10, p11, p12, p13, p14, p15, p16, p17;
+
+	private static final VarHandle VERSION;
+	static {
+		try {
+			VERSION = MethodHandles.lookup().findVarHandle(
+					StatisticsFields.class, "version",
+					long.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/** Start an update; only to be called by the writer. */
+	void beginWrite()
+	{
+		long v = (long)VERSION.getOpaque(this);
+		VERSION.setOpaque(this, v + 1);
+		VarHandle.storeStoreFence();
+	}
+
+	/** Finish an update started by beginWrite(). */
+	void endWrite()
+	{
+		long v = (long)VERSION.getOpaque(this);
+		VERSION.setRelease(this, v + 1);
+	}
+
+	/** Copy a consistent view of these statistics into dst. */
+	public void snapshot(Statistics dst)
+	{
+		long v;
+		do {
+			v = (long)VERSION.getAcquire(this);
+			while ((v & 1) != 0) {
+				Thread.onSpinWait();
+				v = (long)VERSION.getAcquire(this);
+			}
+			dst.N = N;
+			dst.M = M;
+			dst.sum = sum;
+			dst.sumSquares = sumSquares;
+			dst.sumAux = sumAux;
+			dst.sumAuxSquares = sumAuxSquares;
+			dst.NAux = NAux;
+			dst.hasDeadlocks = hasDeadlocks;
+			VarHandle.loadLoadFence();
+		} while ((long)VERSION.getOpaque(this) != v);
+	}
+
+	/** Add the sums of other (not concurrently written) to ours. */
+	public void add(Statistics other)
+	{
+		N += other.N;
+		M += other.M;
+		sum += other.sum;
+		sumSquares += other.sumSquares;
+		sumAux += other.sumAux;
+		sumAuxSquares += other.sumAuxSquares;
+		NAux += other.NAux;
+	}
+
+	public void reset()
+	{
+		beginWrite();
+		N = M = NAux = 0;
+		sum = sumSquares = sumAux = sumAuxSquares = 0;
+		hasDeadlocks = false;
+		endWrite();
+	}
+}
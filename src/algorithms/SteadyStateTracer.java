@@ -6,19 +6,27 @@ import java.util.Random;
 
 /**
  * Estimate the steady-state probability of being in a red state.
+ *
+ * Every sample is a regenerative cycle with importance sampling to
+ * measure the red time, and (unless cyclePool is set) an independent
+ * cycle without it to measure the cycle duration.
  */
 public class SteadyStateTracer extends TraceGenerator
 {
-	private long N;
-	private long M;
-	private double sumRedTime;
-	private double sumTime;
-	private double sumRedTimesSquared;
-	private double sumTimesSquared;
+	/** If positive, only measure the durations of the first cyclePool
+	 * cycles of every generator stream, and use them as a pool of
+	 * durations for all its red-time cycles. The pool of a simulation
+	 * thus holds cyclePool durations per stream. */
+	public static int cyclePool = 0;
+
+	/* sum/sumSquares hold the red time, sumAux/sumAuxSquares the
+	 * cycle duration. */
+	private final Statistics stats = new Statistics();
 	private double estMeanTime;
 	private double estMeanRedTime;
-	private boolean hasDeadlocks;
 	private final SteadyStateTracer mcTracer;
+	/* Number of durations still to be added to the pool. */
+	private int poolLeft = cyclePool;
 
 	public SteadyStateTracer(Random rng, Scheme s, Property p)
 	{
@@ -35,7 +43,7 @@ public class SteadyStateTracer extends TraceGenerator
 	{
 		SteadyStateTracer ret;
 		ret = new SteadyStateTracer(subRNG(), scheme.clone(), prop);
-		ret.hasDeadlocks = hasDeadlocks;
+		ret.stats.hasDeadlocks = stats.hasDeadlocks;
 		ret.estMeanTime = estMeanTime;
 		ret.estMeanRedTime = estMeanRedTime;
 		return ret;
@@ -44,156 +52,199 @@ public class SteadyStateTracer extends TraceGenerator
 	public void reset()
 	{
 		super.reset();
-		hasDeadlocks = false;
-		N = M = 0;
-		sumRedTime = sumTime = sumRedTimesSquared = sumTimesSquared = 0;
+		stats.reset();
 		estMeanTime = estMeanRedTime = 0;
+		poolLeft = cyclePool;
 	}
 
 	public void resetAndEstimateMeans()
 	{
 		double emt = 0, emrt = 0;
-		if (N > 0) {
-			emt = sumTime / N;
-			emrt = sumRedTime / N;
+		if (stats.N > 0) {
+			emt = stats.sumAux / stats.N;
+			emrt = stats.sum / stats.N;
 		}
 		super.resetAndEstimateMeans();
 		estMeanTime = emt;
 		estMeanRedTime = emrt;
-		hasDeadlocks = false;
 	}
 
 	public void resetAndEstimateMeans(TraceGenerator[] ts)
 	{
-		double sum = 0;
-		double sumRed = 0;
-		long N = 0;
+		Statistics total = new Statistics();
+		Statistics snap = new Statistics();
 		super.resetAndEstimateMeans(ts);
 		for (TraceGenerator t : ts) {
 			if (t instanceof SteadyStateTracer) {
-				sum += ((SteadyStateTracer)t).sumTime;
-				sumRed += ((SteadyStateTracer)t).sumRedTime;
-				N += ((SteadyStateTracer)t).N;
+				((SteadyStateTracer)t).stats.snapshot(snap);
+				total.add(snap);
 			}
 		}
-		estMeanTime = sum / N;
-		estMeanRedTime = sumRed / N;
-		hasDeadlocks = false;
+		estMeanTime = total.sumAux / total.N;
+		estMeanRedTime = total.sum / total.N;
 	}
 
 	public void sample()
 	{
-		boolean deadlocked = false;
-                double likelihood = 1;
-                double timeInRed = 0;
+		sampleBatch(1);
+	}
+
+	/** Simulate k traces, adding them to the statistics only once
+	 * at the end. */
+	public void sampleBatch(int k)
+	{
+		boolean hasDeadlocks = stats.hasDeadlocks;
+		long N = 0, M = 0, NAux = 0;
+		double sumRed = 0, sumRedSquares = 0;
+		double sumTime = 0, sumTimeSquares = 0;
 		StateSpace model = scheme.model;
-                StateSpace.State state = model.getInitialState();
-		SteadyStateTracer tracer = this;
 
-		/* Do a cycle with IS to measure red time */
-                do {
-			StateSpace.State prevState = state;
-                        state = tracer.drawNextState(state);
-			if (prop.isRed(model, prevState)) {
-				timeInRed += tracer.drawMeanTransitionTime();
-				tracer = mcTracer;
-			}
-			if (state != prevState) {
-				likelihood *= likelihood();
-			} else {
-				if (tracer.drawMeanTransitionTime() == Double.POSITIVE_INFINITY) {
-					deadlocked = true;
-				} else {
+		for (int i = 0; i < k; i++) {
+			boolean deadlocked = false;
+			double likelihood = 1;
+			double timeInRed = 0;
+			StateSpace.State state = model.getInitialState();
+			SteadyStateTracer tracer = this;
+
+			/* Do a cycle with IS to measure red time */
+			do {
+				StateSpace.State prevState = state;
+				state = tracer.drawNextState(state);
+				if (prop.isRed(model, prevState)) {
+					timeInRed += tracer.drawMeanTransitionTime();
+					tracer = mcTracer;
+				}
+				if (state != prevState) {
 					likelihood *= likelihood();
+				} else {
+					if (tracer.drawMeanTransitionTime() == Double.POSITIVE_INFINITY) {
+						deadlocked = true;
+					} else {
+						likelihood *= likelihood();
+					}
 				}
-			}
-                } while(!prop.isBlue(model, state) && !deadlocked);
-		if (deadlocked) {
-			/* We basically resort to estimating
-			 * P(eventually red), probably very badly due to
-			 * the importance sampling.
-			 */
-			synchronized(this) {
+			} while(!prop.isBlue(model, state) && !deadlocked);
+			if (deadlocked) {
+				/* We basically resort to estimating
+				 * P(eventually red), probably very badly due
+				 * to the importance sampling.
+				 */
 				if (!hasDeadlocks) {
-					/* We didn't know yet we could deadlock.
-					 * */
+					/* We didn't know yet we could
+					 * deadlock. */
 					hasDeadlocks = true;
-					M = 0;
-					N = 0;
-					sumRedTime = sumRedTimesSquared = 0;
+					N = M = 0;
+					sumRed = sumRedSquares = 0;
 				}
 				N++;
 				if (prop.isRed(model, state)) {
 					M++;
-					sumRedTime += likelihood;
-					sumRedTimesSquared = Math.fma(likelihood, likelihood, sumRedTimesSquared);
+					sumRed += likelihood;
+					sumRedSquares = Math.fma(likelihood, likelihood, sumRedSquares);
 				}
 			}
-		}
 
-		/* Now do a cycle without IS to measure cycle duration. */
-		deadlocked = false;
-		state = model.getInitialState();
-		double totalTime = 0;
-		do {
-			double delta;
-			StateSpace.State prevState = state;
-			state = mcTracer.drawNextState(state);
-			totalTime += mcTracer.drawMeanTransitionTime();
-			if (state == prevState)
-				deadlocked = true;
-		} while(!prop.isBlue(model, state) && !deadlocked);
-		synchronized(this) {
+			/* Now do a cycle without IS to measure cycle
+			 * duration, unless the pool is full. */
+			boolean measure = cyclePool <= 0 || poolLeft > 0;
+			if (measure && cyclePool > 0)
+				poolLeft--;
+			deadlocked = false;
+			state = model.getInitialState();
+			double totalTime = 0;
+			while (measure && !deadlocked) {
+				StateSpace.State prevState = state;
+				state = mcTracer.drawNextState(state);
+				totalTime += mcTracer.drawMeanTransitionTime();
+				if (state == prevState)
+					deadlocked = true;
+				if (prop.isBlue(model, state))
+					break;
+			}
 			if (deadlocked) {
 				if (!hasDeadlocks) {
-					/* We didn't know yet we could deadlock.
-					 * */
 					hasDeadlocks = true;
-					M = 0;
-					N = 0;
-					sumRedTime = sumRedTimesSquared = 0;
+					N = M = 0;
+					sumRed = sumRedSquares = 0;
 				}
 				N++;
 				if (prop.isRed(model, state)) {
 					M++;
-					sumRedTime += 1;
-					sumRedTimesSquared += 1;
+					sumRed += 1;
+					sumRedSquares += 1;
 				}
 			}
 			if (!hasDeadlocks) {
 				N++;
 				if (timeInRed > 0) {
 					M++;
-					sumRedTime = Math.fma(timeInRed, likelihood, sumRedTime);
+					sumRed = Math.fma(timeInRed, likelihood, sumRed);
 					double Z = Math.fma(timeInRed, likelihood, -estMeanRedTime);
-					sumRedTimesSquared = Math.fma(Z, Z, sumRedTimesSquared);
+					sumRedSquares = Math.fma(Z, Z, sumRedSquares);
+				}
+				if (measure) {
+					NAux++;
+					sumTime += totalTime;
+					totalTime -= estMeanTime;
+					sumTimeSquares = Math.fma(totalTime, totalTime, sumTimeSquares);
 				}
-				sumTime += totalTime;
-				totalTime -= estMeanTime;
-				sumTimesSquared = Math.fma(totalTime, totalTime, sumTimesSquared);
 			}
 		}
+
+		stats.beginWrite();
+		if (hasDeadlocks && !stats.hasDeadlocks) {
+			stats.hasDeadlocks = true;
+			stats.N = stats.M = 0;
+			stats.sum = stats.sumSquares = 0;
+		}
+		stats.N += N;
+		stats.M += M;
+		stats.sum += sumRed;
+		stats.sumSquares += sumRedSquares;
+		stats.sumAux += sumTime;
+		stats.sumAuxSquares += sumTimeSquares;
+		stats.NAux += NAux;
+		stats.endWrite();
 	}
 
-	private SimulationResult getDeadlockResult(double alpha)
+	private SimulationResult getDeadlockResult(Statistics s, double alpha)
 	{
 		long time = getElapsedTime();
-		double mean = sumRedTime / N;
-		double var = Math.fma(-sumRedTime, mean, sumRedTimesSquared);
+		long N = s.N;
+		double mean = s.sum / N;
+		double var = Math.fma(-s.sum, mean, s.sumSquares);
 		var /= N - 1;
 
-		return new SimulationResult(prop, alpha, mean, var, new long[]{N, M}, time, scheme.storedStates());
+		return new SimulationResult(prop, alpha, mean, var, new long[]{N, s.M}, time, scheme.storedStates());
 
 	}
 
-	public synchronized SimulationResult getResult(double alpha)
+	public SimulationResult getResult(double alpha)
 	{
-		if (hasDeadlocks)
-			return getDeadlockResult(alpha);
+		Statistics snap = new Statistics();
+		stats.snapshot(snap);
+		return getResult(snap, estMeanTime, estMeanRedTime, alpha);
+	}
+
+	private SimulationResult getResult(Statistics s, double estMeanTime,
+	                                   double estMeanRedTime, double alpha)
+	{
+		if (s.hasDeadlocks)
+			return getDeadlockResult(s, alpha);
 		long time = getElapsedTime();
+		long N = s.N, M = s.M, NAux = s.NAux;
+		double sumRedTime = s.sum, sumTime = s.sumAux;
 		double meanZ = sumRedTime / N;
-		double meanT = sumTime / N;
-		if (M <= 1) {
+		double meanT = sumTime / NAux;
+		double varT = Math.fma(NAux, -estMeanTime, sumTime);
+		varT = Math.fma(-varT, meanT - estMeanTime, s.sumAuxSquares);
+		if (NAux != N) {
+			/* Pooled durations: scale their sums to N cycles,
+			 * keeping the variance of their mean. */
+			sumTime = meanT * N;
+			varT *= (N - 1.0) / (NAux - 1) * N / NAux;
+		}
+		if (M <= 1 || NAux <= 1) {
 			return new SimulationResult(prop, sumRedTime / sumTime, alpha, Double.NaN, 0, Double.POSITIVE_INFINITY, new long[]{N, M}, time, scheme.storedStates());
 		}
 		if (Simulator.VERBOSE) {
@@ -201,9 +252,7 @@ public class SteadyStateTracer extends TraceGenerator
 			System.err.println("Estimator for D (total    time during cycle): " + meanT);
 		}
 		double varZ = Math.fma(N, -estMeanRedTime, sumRedTime);
-                varZ = Math.fma(-varZ, meanZ - estMeanRedTime, sumRedTimesSquared);
-                double varT = Math.fma(N, -estMeanTime, sumTime);
-                varT = Math.fma(-varT, meanT - estMeanTime, sumTimesSquared);
+                varZ = Math.fma(-varZ, meanZ - estMeanRedTime, s.sumSquares);
 
                 double meanV = sumRedTime/sumTime;
                 double varV = N*Math.fma(meanV, meanV*varT, varZ)*N;
@@ -214,43 +263,32 @@ public class SteadyStateTracer extends TraceGenerator
 
 	public SimulationResult getResult(TraceGenerator[] ts, double alpha)
 	{
-		boolean deadlock = false;
-		hasDeadlocks = false;
-		N = M = 0;
-		sumRedTime = sumTime = sumRedTimesSquared = sumTimesSquared = 0;
+		Statistics total = new Statistics();
+		Statistics snap = new Statistics();
+		double estMeanTime = this.estMeanTime;
+		double estMeanRedTime = this.estMeanRedTime;
 
 		for (TraceGenerator t : ts) {
 			if (t instanceof SteadyStateTracer) {
 				SteadyStateTracer st = (SteadyStateTracer)t;
-				synchronized(st) {
-					if (deadlock && !st.hasDeadlocks)
-						continue;
-					if (st.hasDeadlocks && !deadlock) {
-						N = M = 0;
-						deadlock = true;
-						hasDeadlocks = true;
-						sumRedTime = sumRedTimesSquared = 0;
-					}
-					if (!deadlock
-					    && (estMeanTime != st.estMeanTime
-						|| estMeanRedTime != st.estMeanRedTime))
-					{
-						N = M = 0;
-						sumRedTime = sumTime = 0;
-						sumRedTimesSquared = 0;
-						sumTimesSquared = 0;
-					}
-					estMeanTime = st.estMeanTime;
-					estMeanRedTime = st.estMeanRedTime;
-					sumTime += st.sumTime;
-					sumRedTime += st.sumRedTime;
-					sumTimesSquared += st.sumTimesSquared;
-					sumRedTimesSquared += st.sumRedTimesSquared;
-					N += st.N;
-					M += st.M;
+				st.stats.snapshot(snap);
+				if (total.hasDeadlocks && !snap.hasDeadlocks)
+					continue;
+				if (snap.hasDeadlocks && !total.hasDeadlocks) {
+					total.reset();
+					total.hasDeadlocks = true;
+				}
+				if (!total.hasDeadlocks
+				    && (estMeanTime != st.estMeanTime
+					|| estMeanRedTime != st.estMeanRedTime))
+				{
+					total.reset();
 				}
+				estMeanTime = st.estMeanTime;
+				estMeanRedTime = st.estMeanRedTime;
+				total.add(snap);
 			}
 		}
-		return getResult(alpha);
+		return getResult(total, estMeanTime, estMeanRedTime, alpha);
 	}
 }
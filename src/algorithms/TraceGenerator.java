@@ -1,5 +1,7 @@
 package algorithms;
 
+import models.AliasTable;
+import models.CompiledStateSpace;
 import models.StateSpace;
 import java.util.Arrays;
 import java.util.Map;
@@ -27,6 +29,9 @@ public abstract class TraceGenerator
 	private StateSpace.Neighbours nbs;
 	private double delta;
 	private double lastDeltaLikelihood;
+	/* Likelihood of the last step if it was drawn directly from a
+	 * compiled state space, NaN otherwise. */
+	private double compiledLikelihood = Double.NaN;
 	private double[] pReachSink = new double[1];
 
 	private final Random rng;
@@ -86,6 +91,12 @@ public abstract class TraceGenerator
 	public StateSpace.State drawNextState(StateSpace.State state, double timeBound) {
 		lastDeltaLikelihood = 1;
 		prevState = state;
+		if (state instanceof CompiledStateSpace.CompiledState
+		    && scheme.getClass() == Scheme.class)
+		{
+			return drawCompiled((CompiledStateSpace.CompiledState)state);
+		}
+		compiledLikelihood = Double.NaN;
 		nbs = scheme.prepareState(prevState, timeBound);
 		if (scheme.neighbours.length == 1) {
 			chosen = 0;
@@ -95,6 +106,10 @@ public abstract class TraceGenerator
 			chosen = -1;
 			return prevState;
 		}
+		if (scheme.aliasIS != null) {
+			chosen = scheme.aliasIS.sample(rng.nextDouble());
+			return scheme.neighbours[chosen];
+		}
 		double sumProb = 0;
 		double u = rng.nextDouble() * scheme.totalStateWeightIS;
 		for (int i = scheme.neighbours.length - 1; i >= 0; i--) {
@@ -105,7 +120,7 @@ public abstract class TraceGenerator
 				return scheme.neighbours[i];
 			}
 		}
-		System.err.println("WARNING: State selection problem from state " + Arrays.toString(prevState.state) + ", probably due to floating-point roundoff error.");
+		System.err.println("WARNING: State selection problem from state " + Arrays.toString(prevState.getState()) + ", probably due to floating-point roundoff error.");
 		System.err.println("Probabilities: " + Arrays.toString(scheme.stateWeightsIS));
 		System.err.println("Random: " + u + " out of " + scheme.totalStateWeightIS + " (sum " + sumProb + ")");
 		System.err.println("Original: " + Arrays.toString(scheme.probs));
@@ -113,8 +128,43 @@ public abstract class TraceGenerator
 		return scheme.neighbours[chosen];
 	}
 
+	/** Standard Monte Carlo step straight from the transition arrays
+	 * of a compiled state space.
+	 */
+	private StateSpace.State drawCompiled(CompiledStateSpace.CompiledState state)
+	{
+		CompiledStateSpace space = state.getSpace();
+		double[] probs = space.probs;
+		int lo = space.offsets[state.id], hi = space.offsets[state.id + 1];
+		scheme.exitRate = space.exitRates[state.id];
+		compiledLikelihood = 1;
+		if (hi == lo) {
+			chosen = -1;
+			return prevState;
+		}
+		double total = space.totals[state.id];
+		int i = hi - 1;
+		AliasTable alias = space.getAliasTable(state.id);
+		if (alias != null) {
+			i = lo + alias.sample(rng.nextDouble());
+		} else if (hi - lo > 1) {
+			double sumProb = 0;
+			double u = rng.nextDouble() * total;
+			for (; i > lo; i--) {
+				sumProb += probs[i];
+				if (u < sumProb)
+					break;
+			}
+		}
+		compiledLikelihood = total;
+		chosen = i - lo;
+		return space.states[space.targets[i]];
+	}
+
 	protected double likelihood()
 	{
+		if (!Double.isNaN(compiledLikelihood))
+			return compiledLikelihood * lastDeltaLikelihood;
 		return scheme.likelihood(chosen, delta) * lastDeltaLikelihood;
 	}
 
@@ -275,7 +325,7 @@ public abstract class TraceGenerator
 		}
 		if(!(prevState instanceof StateSpace.HPCState)) {
 			lastDeltaLikelihood = 1;
-			delta = drawExponential(prevState.getNeighbours().exitRate, timeBound);
+			delta = drawExponential(scheme.exitRate, timeBound);
 			return delta;
 		}
 
@@ -318,7 +368,7 @@ public abstract class TraceGenerator
 			return Double.POSITIVE_INFINITY;
 		}
 		if(!(prevState instanceof StateSpace.HPCState))
-			return 1 / prevState.getNeighbours().exitRate;
+			return 1 / scheme.exitRate;
 		StateSpace.HPCState k = (StateSpace.HPCState)prevState;
 		if (k.meanTimes != null)
 			return k.meanTimes[chosen];
@@ -368,5 +418,24 @@ public abstract class TraceGenerator
 
 	public abstract SimulationResult getResult(double alpha);
 	public abstract SimulationResult getResult(TraceGenerator[] ts, double alpha);
+
+	/** The results of all properties this generator estimates,
+	 * ending with prop. */
+	public SimulationResult[] getResults(TraceGenerator[] ts, double alpha)
+	{
+		return new SimulationResult[]{getResult(ts, alpha)};
+	}
+
 	public abstract void sample();
+
+	/**
+	 * Simulate k traces. By default, this just calls sample() k
+	 * times; subclasses may override it to update their statistics
+	 * only once per batch.
+	 */
+	public void sampleBatch(int k)
+	{
+		for (int i = 0; i < k; i++)
+			sample();
+	}
 }
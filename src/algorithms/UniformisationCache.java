@@ -0,0 +1,272 @@
+package algorithms;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shared cache of the probabilities that a sequence of exponential
+ * delays completes within a time bound, as computed by uniformisation
+ * for ReachabilityTracer.
+ *
+ * A sequence is identified by its uniformisation rate times the time
+ * bound (lambdaT), and its rates relative to the uniformisation rate
+ * in decreasing order. To make equal sequences hit regardless of
+ * rounding, all of these are quantised to QUANT_BITS bits of
+ * mantissa, and the computation uses the quantised values. Every
+ * entry also keeps, per uniformisation step, the probability of
+ * completing in exactly that step, so that a sequence extending a
+ * cached one only needs to be computed for its extra delays. Results
+ * are the same whichever entries happen to be cached.
+ *
+ * The cache is bounded by an estimate of its memory use, and evicts
+ * entries in CLOCK (second chance) order.
+ */
+final class UniformisationCache
+{
+	private static final double UNIF_BOUND = 1e-10;
+	private static final int QUANT_BITS = 44;
+
+	static final UniformisationCache SHARED = new UniformisationCache(Runtime.getRuntime().maxMemory() / 16);
+
+	private static final class Key {
+		final double lambdaT;
+		final double[] rates;
+		final int length;
+		final int hash;
+
+		Key(double lambdaT, double[] rates, int length, int hash)
+		{
+			this.lambdaT = lambdaT;
+			this.rates = rates;
+			this.length = length;
+			this.hash = hash;
+		}
+
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key))
+				return false;
+			Key other = (Key)o;
+			return other.hash == hash && other.length == length
+			       && other.lambdaT == lambdaT
+			       && Arrays.equals(rates, 0, length,
+			                        other.rates, 0, length);
+		}
+	}
+
+	private static final class Entry {
+		final Key key;
+		/* inflow[j] is the probability of completing the last
+		 * delay in uniformisation step j. */
+		final double[] inflow;
+		final double prob;
+		final int size;
+		volatile boolean referenced;
+
+		Entry(Key key, double[] inflow, double prob)
+		{
+			this.key = key;
+			this.inflow = inflow;
+			this.prob = prob;
+			size = 96 + 8 * (key.length + inflow.length);
+		}
+	}
+
+	private final ConcurrentHashMap<Key, Entry> map = new ConcurrentHashMap<>();
+	private final long budget;
+	/* Guarded by this. */
+	private final ArrayDeque<Entry> clock = new ArrayDeque<>();
+	private long used;
+
+	UniformisationCache(long budget)
+	{
+		this.budget = budget;
+	}
+
+	static double quantise(double x)
+	{
+		long bits = Double.doubleToRawLongBits(x);
+		long half = 1L << (51 - QUANT_BITS);
+		bits = (bits + half) & -(half << 1);
+		return Double.longBitsToDouble(bits);
+	}
+
+	/**
+	 * The probability that delays with the given rates all complete
+	 * within the time bound, up to an error of about UNIF_BOUND.
+	 *
+	 * @param rates The rates, which are reordered.
+	 */
+	double probability(double[] rates, double timeBound)
+	{
+		int n = rates.length;
+		double unifRate = 0;
+		for (double r : rates)
+			if (r > unifRate)
+				unifRate = r;
+		double lambdaT = quantise(unifRate * timeBound);
+		double[] rel = new double[n];
+		for (int i = 0; i < n; i++)
+			rel[i] = quantise(rates[i] / unifRate);
+		Arrays.sort(rel);
+		for (int i = 0; i < n / 2; i++) {
+			double tmp = rel[i];
+			rel[i] = rel[n - i - 1];
+			rel[n - i - 1] = tmp;
+		}
+
+		int[] hashes = new int[n + 1];
+		hashes[0] = Double.hashCode(lambdaT);
+		for (int i = 0; i < n; i++)
+			hashes[i + 1] = hashes[i] * 31 + Double.hashCode(rel[i]);
+
+		Entry hit = map.get(new Key(lambdaT, rel, n, hashes[n]));
+		if (hit != null) {
+			hit.referenced = true;
+			return hit.prob;
+		}
+		int k = n - 1;
+		for (; k > 0; k--) {
+			hit = map.get(new Key(lambdaT, rel, k, hashes[k]));
+			if (hit != null) {
+				hit.referenced = true;
+				break;
+			}
+		}
+
+		Window w = window(lambdaT);
+		double[] inflow;
+		if (hit != null) {
+			inflow = hit.inflow;
+		} else {
+			k = 0;
+			inflow = new double[w.right() + 1];
+			inflow[0] = 1;
+		}
+		for (; k < n; k++)
+			inflow = extend(inflow, rel[k]);
+
+		double done = 0, prob = 0;
+		for (int j = 0; j < inflow.length; j++) {
+			done += inflow[j];
+			if (j >= w.left)
+				prob = Math.fma(done, w.weights[j - w.left], prob);
+		}
+		Key key = new Key(lambdaT, rel, n, hashes[n]);
+		add(new Entry(key, inflow, prob));
+		return prob;
+	}
+
+	/* The Poisson probabilities of the uniformisation steps, truncated
+	 * on both sides (after Fox and Glynn) so that at most UNIF_BOUND
+	 * of the mass is lost: weights[i] is the probability of exactly
+	 * left + i jumps, normalised over the window. Starting from the
+	 * mode avoids the underflow of exp(-lambdaT) for large lambdaT.
+	 * Beyond the mode, the terms decrease by ever smaller factors,
+	 * which bounds the remaining tails by geometric series. */
+	private static final class Window {
+		final int left;
+		final double[] weights;
+
+		Window(double lambdaT)
+		{
+			int mode = (int)Math.floor(lambdaT);
+			double[] down = new double[16], up = new double[16];
+			down[0] = up[0] = 1;
+			double total = 1;
+			int nDown = 1, nUp = 1;
+			/* Terms below the mode: w(j - 1) = w(j) * j / lambdaT. */
+			for (int j = mode; j > 0; j--) {
+				double q = j / lambdaT;
+				double w = down[nDown - 1];
+				if (q < 1 && w * q / (1 - q) <= UNIF_BOUND / 2 * total)
+					break;
+				w *= q;
+				if (nDown == down.length)
+					down = Arrays.copyOf(down, nDown * 2);
+				down[nDown++] = w;
+				total += w;
+			}
+			/* Terms above the mode: w(j + 1) = w(j) * lambdaT / (j + 1). */
+			for (int j = mode; ; j++) {
+				double q = lambdaT / (j + 1);
+				double w = up[nUp - 1];
+				if (q < 1 && w * q / (1 - q) <= UNIF_BOUND / 2 * total)
+					break;
+				w *= q;
+				if (nUp == up.length)
+					up = Arrays.copyOf(up, nUp * 2);
+				up[nUp++] = w;
+				total += w;
+			}
+			left = mode - nDown + 1;
+			weights = new double[nDown + nUp - 1];
+			for (int i = 0; i < nDown; i++)
+				weights[nDown - 1 - i] = down[i] / total;
+			for (int i = 1; i < nUp; i++)
+				weights[nDown - 1 + i] = up[i] / total;
+		}
+
+		/** The last step in the window. */
+		int right()
+		{
+			return left + weights.length - 1;
+		}
+	}
+
+	private static final int MAX_WINDOWS = 1024;
+	private final ConcurrentHashMap<Double, Window> windows = new ConcurrentHashMap<>();
+
+	private Window window(double lambdaT)
+	{
+		Window ret = windows.get(lambdaT);
+		if (ret == null) {
+			ret = new Window(lambdaT);
+			if (windows.size() >= MAX_WINDOWS)
+				windows.clear();
+			windows.putIfAbsent(lambdaT, ret);
+		}
+		return ret;
+	}
+
+	/* The inflow after appending a delay with relative rate r. */
+	private static double[] extend(double[] inflow, double r)
+	{
+		double[] ret = new double[inflow.length];
+		/* Probability of being in the new delay after step j-1. */
+		double p = 0;
+		for (int j = 0; j < inflow.length; j++) {
+			ret[j] = p * r;
+			p = -Math.fma(p, r, -p) + inflow[j];
+		}
+		return ret;
+	}
+
+	private void add(Entry e)
+	{
+		if (e.size > budget)
+			return;
+		if (map.putIfAbsent(e.key, e) != null)
+			return;
+		synchronized(this) {
+			clock.add(e);
+			used += e.size;
+			while (used > budget) {
+				Entry old = clock.poll();
+				if (old.referenced) {
+					old.referenced = false;
+					clock.add(old);
+					continue;
+				}
+				map.remove(old.key);
+				used -= old.size;
+			}
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package models;
+
+/**
+ * Walker's alias method (in Vose's formulation) for drawing from a
+ * fixed discrete distribution in constant time.
+ */
+public final class AliasTable
+{
+	/** Below this many entries a linear scan is about as fast, so
+	 * no table is worth building. */
+	public static final int MIN_ENTRIES = 4;
+
+	private final double[] prob;
+	private final int[] alias;
+
+	/**
+	 * Build a table drawing index i with probability proportional to
+	 * weights[from + i], for 0 <= i < n.
+	 */
+	public AliasTable(double[] weights, int from, int n)
+	{
+		double total = 0;
+		int best = 0;
+		for (int i = 0; i < n; i++) {
+			total += weights[from + i];
+			if (weights[from + i] > weights[from + best])
+				best = i;
+		}
+		if (!(total > 0))
+			throw new IllegalArgumentException("Alias table without positive weights.");
+		prob = new double[n];
+		alias = new int[n];
+		int[] small = new int[n], large = new int[n];
+		int nSmall = 0, nLarge = 0;
+		double scale = n / total;
+		for (int i = 0; i < n; i++) {
+			prob[i] = weights[from + i] * scale;
+			if (prob[i] < 1)
+				small[nSmall++] = i;
+			else
+				large[nLarge++] = i;
+		}
+		while (nSmall > 0 && nLarge > 0) {
+			int s = small[--nSmall];
+			int l = large[--nLarge];
+			alias[s] = l;
+			prob[l] = (prob[l] + prob[s]) - 1;
+			if (prob[l] < 1)
+				small[nSmall++] = l;
+			else
+				large[nLarge++] = l;
+		}
+		/* Whatever remains is 1 up to roundoff, but roundoff must
+		 * never make an impossible entry drawable. */
+		while (nLarge > 0) {
+			int l = large[--nLarge];
+			fill(l, weights[from + l] > 0, best);
+		}
+		while (nSmall > 0) {
+			int s = small[--nSmall];
+			fill(s, weights[from + s] > 0, best);
+		}
+	}
+
+	private void fill(int i, boolean possible, int best)
+	{
+		if (possible) {
+			prob[i] = 1;
+			alias[i] = i;
+		} else {
+			prob[i] = 0;
+			alias[i] = best;
+		}
+	}
+
+	public AliasTable(double[] weights)
+	{
+		this(weights, 0, weights.length);
+	}
+
+	/** Draw an index, given a uniform random number in [0, 1). */
+	public int sample(double u)
+	{
+		double x = u * prob.length;
+		int i = (int)x;
+		if (x - i < prob[i])
+			return i;
+		return alias[i];
+	}
+}
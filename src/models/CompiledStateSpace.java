@@ -0,0 +1,210 @@
+package models;
+
+import java.util.Arrays;
+import nl.utwente.ewi.fmt.EXPRES.expression.VariableSlot;
+
+/**
+ * State space that is fully explored up front from another state
+ * space. States get dense integer ids, and the transitions of all
+ * states are stored in flat arrays (in compressed sparse row form),
+ * so that simulations can walk the state space without going
+ * through the per-state Neighbours objects.
+ *
+ * The source state space is only kept in unexplored form (to look up
+ * variables), so its explored states are freed after compilation.
+ * Neighbours objects are still created on demand from the arrays for
+ * the search algorithms and importance sampling schemes, subject to
+ * the neighbour cache.
+ */
+public class CompiledStateSpace extends StateSpace
+{
+	public class CompiledState extends State {
+		public final int id;
+
+		private CompiledState(int[] s, int id)
+		{
+			super(s);
+			this.id = id;
+		}
+
+		public CompiledStateSpace getSpace()
+		{
+			return CompiledStateSpace.this;
+		}
+	}
+
+	/* The source without its explored states. */
+	private final StateSpace variables;
+	/** The transitions of state i are those at indices offsets[i]
+	 * (inclusive) to offsets[i + 1] (exclusive) of the other
+	 * arrays. */
+	public final int[] offsets;
+	public final int[] targets;
+	public final short[] orders;
+	public final double[] probs;
+	/** Exit rate per state. */
+	public final double[] exitRates;
+	/** Sum of the transition probabilities per state. */
+	public final double[] totals;
+	/** State objects by id, replaced by their HPCStates when HPCs
+	 * are removed. */
+	public final State[] states;
+	private final boolean[] isHPC;
+	private final AliasTable[] aliases;
+
+	/* Filled by newState(), which is already called from the
+	 * superclass constructor, so must not have initializers. */
+	private State[] created;
+	private int nCreated;
+	private boolean frozen;
+
+	private CompiledStateSpace(StateSpace source, int limit)
+	{
+		super(source.epsilon, source.getInitialState().getState());
+		int[] offsets = new int[1024];
+		int[] targets = new int[1024];
+		short[] orders = new short[1024];
+		double[] probs = new double[1024];
+		double[] exitRates = new double[1024];
+		int n = 0;
+
+		for (int i = 0; i < nCreated; i++) {
+			if (nCreated > limit) {
+				n = -1;
+				break;
+			}
+			Neighbours nbs = source.findOrCreate(created[i].getState()).getNeighbours();
+			int k = nbs.neighbours.length;
+			if (i + 1 >= offsets.length) {
+				offsets = Arrays.copyOf(offsets, offsets.length * 2);
+				exitRates = Arrays.copyOf(exitRates, offsets.length);
+			}
+			if (n + k > targets.length) {
+				int len = Math.max(targets.length * 2, n + k);
+				targets = Arrays.copyOf(targets, len);
+				orders = Arrays.copyOf(orders, len);
+				probs = Arrays.copyOf(probs, len);
+			}
+			for (int j = 0; j < k; j++) {
+				State z = findOrCreate(nbs.neighbours[j].getState());
+				targets[n] = ((CompiledState)z).id;
+				orders[n] = nbs.orders[j];
+				probs[n] = nbs.probs[j];
+				n++;
+			}
+			offsets[i + 1] = n;
+			exitRates[i] = nbs.exitRate;
+		}
+		if (n < 0) {
+			this.offsets = this.targets = null;
+			this.orders = null;
+			this.probs = this.exitRates = this.totals = null;
+			this.states = null;
+			this.isHPC = null;
+			this.aliases = null;
+		} else {
+			this.offsets = Arrays.copyOf(offsets, nCreated + 1);
+			this.targets = Arrays.copyOf(targets, n);
+			this.orders = Arrays.copyOf(orders, n);
+			this.probs = Arrays.copyOf(probs, n);
+			this.exitRates = Arrays.copyOf(exitRates, nCreated);
+			this.totals = new double[nCreated];
+			for (int i = 0; i < nCreated; i++) {
+				double total = 0;
+				for (int j = offsets[i]; j < offsets[i + 1]; j++)
+					total += probs[j];
+				totals[i] = total;
+			}
+			this.states = Arrays.copyOf(created, nCreated);
+			this.isHPC = new boolean[nCreated];
+			this.aliases = new AliasTable[nCreated];
+		}
+		created = null;
+		frozen = true;
+		variables = source.unexplored();
+	}
+
+	/**
+	 * Explore all states reachable in the given state space.
+	 *
+	 * @return The compiled state space, or null if it has more than
+	 * limit states.
+	 */
+	public static CompiledStateSpace compile(StateSpace source, int limit)
+	{
+		CompiledStateSpace ret = new CompiledStateSpace(source, limit);
+		if (ret.offsets == null)
+			return null;
+		return ret;
+	}
+
+	protected State newState(int[] x)
+	{
+		if (frozen)
+			throw new UnsupportedOperationException("New state found in compiled state space.");
+		if (created == null)
+			created = new State[1024];
+		if (nCreated == created.length)
+			created = Arrays.copyOf(created, nCreated * 2);
+		State ret = new CompiledState(x, nCreated);
+		created[nCreated++] = ret;
+		return ret;
+	}
+
+	/** Whether the state with the given id has been replaced by an
+	 * HPC. */
+	public boolean isHPC(int id)
+	{
+		return isHPC[id];
+	}
+
+	/** Alias table for the transitions of the state with the given
+	 * id, or null if it has too few transitions. */
+	public AliasTable getAliasTable(int id)
+	{
+		AliasTable ret = aliases[id];
+		int from = offsets[id], n = offsets[id + 1] - from;
+		if (ret == null && n >= AliasTable.MIN_ENTRIES)
+			aliases[id] = ret = new AliasTable(probs, from, n);
+		return ret;
+	}
+
+	public void addHPC(State orig, State[] newNeighbours,
+	                   short[] newOrders, double[] newProbs,
+			   double[] meanTimes)
+	{
+		super.addHPC(orig, newNeighbours, newOrders, newProbs, meanTimes);
+		if (orig instanceof CompiledState) {
+			int id = ((CompiledState)orig).id;
+			states[id] = find(orig);
+			isHPC[id] = true;
+		}
+	}
+
+	protected Neighbours findNeighbours(State s)
+	{
+		int id = ((CompiledState)s).id;
+		int from = offsets[id], to = offsets[id + 1];
+		State[] ns = new State[to - from];
+		for (int i = from; i < to; i++)
+			ns[i - from] = states[targets[i]];
+		return explored(s, ns, Arrays.copyOfRange(orders, from, to),
+		                Arrays.copyOfRange(probs, from, to),
+		                exitRates[id]);
+	}
+
+	public String stateString(State state)
+	{
+		return variables.stateString(state);
+	}
+
+	public Number getVarValue(String variable, State state)
+	{
+		return variables.getVarValue(variable, state);
+	}
+
+	public VariableSlot getVarSlot(String variable)
+	{
+		return variables.getVarSlot(variable);
+	}
+}
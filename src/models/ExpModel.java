@@ -1,12 +1,12 @@
 package models;
 import java.io.IOException;
-import java.util.Map;
-import java.util.Set;
 import nl.utwente.ewi.fmt.EXPRES.Composition;
 import nl.utwente.ewi.fmt.EXPRES.LTS;
 import nl.utwente.ewi.fmt.EXPRES.NondeterminismException;
 import nl.utwente.ewi.fmt.EXPRES.Property;
+import nl.utwente.ewi.fmt.EXPRES.TransitionBuffer;
 import nl.utwente.ewi.fmt.EXPRES.expression.Expression;
+import nl.utwente.ewi.fmt.EXPRES.expression.VariableSlot;
 
 public class ExpModel extends StateSpace
 {
@@ -15,6 +15,9 @@ public class ExpModel extends StateSpace
 	private final static boolean VERBOSE = false;
 	private final double logEpsilon;
 	private final Property prop;
+	private final ThreadLocal<TransitionBuffer> buffers;
+	/** Keep the state vectors packed in off-heap memory. */
+	public static boolean packStates = false;
 
 	public ExpModel(ExpModel other, Property newProp)
 	{
@@ -28,6 +31,7 @@ public class ExpModel extends StateSpace
 		this.initialState = other.initialState;
 		this.comp = other.comp;
 		this.prop = other.prop;
+		this.buffers = other.buffers;
 	}
 
 	public ExpModel (double epsilon, LTS model) throws IOException
@@ -37,11 +41,14 @@ public class ExpModel extends StateSpace
 
 	public ExpModel (double epsilon, LTS model, Property prop)
 	{
-		super(epsilon, model.getInitialState());
+		super(epsilon, model.getInitialState(),
+		      packStates ? model.getStateBits() : null);
 		logEpsilon = Math.log(epsilon);
 
 		comp = model;
 		initialState = comp.getInitialState();
+		int n = initialState.length;
+		buffers = ThreadLocal.withInitial(() -> new TransitionBuffer(n));
 		if (VERBOSE)
 			System.err.format("Initial state: %s\n", java.util.Arrays.toString(initialState));
 		this.prop = prop;
@@ -54,47 +61,48 @@ public class ExpModel extends StateSpace
 
 	public Neighbours findNeighbours(State s)
 	{
-		int[] state = s.state;
+		int[] state = s.getState();
 
 		Composition.statesExplored = 0;
 		//System.err.format("Neighbours from state %d (%s)\n", s, java.util.Arrays.toString(state));
-		Set<LTS.Transition> transitions;
+		TransitionBuffer buf = buffers.get();
 		try {
-			transitions = comp.getTransitions(state);
+			comp.getSuccessors(state, buf);
 		} catch (NondeterminismException e) {
 			throw new UnsupportedOperationException(e);
 		}
-		State[] neighbours = new State[transitions.size()];
-		short[] orders = new short[transitions.size()];
-		double[] probs = new double[transitions.size()];
+		int n = buf.size();
+		State[] neighbours = new State[n];
+		short[] orders = new short[n];
+		double[] probs = new double[n];
 		boolean probabilistic = false;
+		int[] target = buf.scratch;
 
-		int i = 0;
-		for (LTS.Transition t : transitions) {
-			String rlabel = t.label.substring(1);
-			double rateOrProb = Double.parseDouble(rlabel);
-			if (t.label.charAt(0) == 'p')
+		for (int i = 0; i < n; i++) {
+			byte kind = buf.kind(i);
+			double rateOrProb = buf.value(i);
+			if (kind == TransitionBuffer.PROBABILITY)
 				probabilistic = true;
-			else if (t.label.charAt(0) != 'r')
-				throw new IllegalArgumentException("Non-Markovian transition encountered: " + t.label);
+			else if (kind != TransitionBuffer.RATE)
+				throw new IllegalArgumentException("Non-Markovian transition encountered: " + buf.label(i));
+			if (Double.isNaN(rateOrProb))
+				throw new IllegalArgumentException("Unparseable rate: " + buf.label(i));
 			int order = (int)Math.ceil(Math.log(rateOrProb) / logEpsilon);
 			if (order < 0)
 				order = 0;
 			if (order > Short.MAX_VALUE)
 				throw new IllegalArgumentException("Order does not fit in 16 bits.");
-			State z = findOrCreate(t.target.clone());
-			neighbours[i] = z;
+			System.arraycopy(buf.targets(), buf.targetOffset(i),
+			                 target, 0, target.length);
+			neighbours[i] = findOrCreateCopy(target);
 			orders[i] = (short)order;
 			probs[i] = rateOrProb;
-			i++;
 		}
 
 		double totProb = 0;
-		int n = probs.length;
-
-		for(i = 0; i < n; i++)
+		for (int i = 0; i < n; i++)
 			totProb += probs[i];
-		for(i = 0; i < n; i++)
+		for (int i = 0; i < n; i++)
 			probs[i] /= totProb;
 
 		if (probabilistic)
@@ -102,8 +110,21 @@ public class ExpModel extends StateSpace
 		return explored(s, neighbours, orders, probs, totProb);
 	}
 
+	public ExpModel unexplored()
+	{
+		return new ExpModel(epsilon, comp, prop);
+	}
+
 	public Number getVarValue(String variable, State state)
 	{
-		return comp.getVarValue(variable, state.state);
+		VariableSlot slot = comp.getVarSlot(variable);
+		if (slot != null)
+			return state.read(slot);
+		return comp.getVarValue(variable, state.getState());
+	}
+
+	public VariableSlot getVarSlot(String variable)
+	{
+		return comp.getVarSlot(variable);
 	}
 }
@@ -0,0 +1,194 @@
+package models;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of explored neighbours, bounded by an estimate of their memory
+ * use.
+ *
+ * A state's neighbours are kept directly in the state. The cache only
+ * decides which states keep them: when the budget is exceeded, states
+ * are evicted in CLOCK (second chance) order, where a state whose
+ * neighbours were used since the hand last passed gets to stay for
+ * another round. Pinned neighbours and those of HPC states are kept
+ * outside the budget, and are never evicted.
+ */
+public final class NeighbourCache
+{
+	/** Whether to count hits, which updates a shared counter on
+	 * every lookup. */
+	public static boolean countHits = false;
+
+	private static final VarHandle NEIGHBOURS;
+	static {
+		try {
+			NEIGHBOURS = MethodHandles.lookup().findVarHandle(
+					StateSpace.State.class, "neighbours",
+					StateSpace.Neighbours.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final long budget;
+	/* The fields below are guarded by this. */
+	private long used;
+	/* Circular queue of the cached states, the hand at head. */
+	private StateSpace.State[] ring;
+	private int[] sizes;
+	private int head, count;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/** @param budget Estimated bytes of neighbours to keep, or
+	 * Long.MAX_VALUE to never evict. */
+	NeighbourCache(long budget)
+	{
+		this.budget = budget;
+		if (budget < Long.MAX_VALUE) {
+			ring = new StateSpace.State[64];
+			sizes = new int[64];
+		}
+	}
+
+	/** Rough estimate of the bytes used by the neighbours. */
+	private static int sizeOf(StateSpace.Neighbours ns)
+	{
+		int n = ns.probs.length;
+		int ret = 104 + 14 * n;
+		if (n >= AliasTable.MIN_ENTRIES)
+			ret += 48 + 12 * n;
+		return ret;
+	}
+
+	void hit()
+	{
+		if (countHits)
+			hits.increment();
+	}
+
+	/**
+	 * Store the newly explored neighbours of s.
+	 *
+	 * @return The neighbours now cached for s, which are those of
+	 * another thread if it got there first.
+	 */
+	StateSpace.Neighbours add(StateSpace.State s, StateSpace.Neighbours ns)
+	{
+		misses.increment();
+		if (ring == null) {
+			Object cur = NEIGHBOURS.compareAndExchange(s, null, ns);
+			if (cur != null)
+				return (StateSpace.Neighbours)cur;
+			return ns;
+		}
+		int size = sizeOf(ns);
+		synchronized(this) {
+			StateSpace.Neighbours cur = s.neighbours;
+			if (cur != null)
+				return cur;
+			while (count > 0 && used + size > budget)
+				evictOne();
+			if (size > budget)
+				return ns;
+			if (count == ring.length)
+				grow();
+			int i = (head + count++) % ring.length;
+			ring[i] = s;
+			sizes[i] = size;
+			used += size;
+			s.referenced = false;
+			s.neighbours = ns;
+		}
+		return ns;
+	}
+
+	/** Never evict the neighbours of s, which are ns unless s has
+	 * others cached. */
+	synchronized StateSpace.Neighbours pin(StateSpace.State s,
+	                                       StateSpace.Neighbours ns)
+	{
+		s.neighboursPinned = true;
+		StateSpace.Neighbours cur = s.neighbours;
+		if (cur != null)
+			return cur;
+		s.neighbours = ns;
+		return ns;
+	}
+
+	/* Must hold the lock. */
+	private void evictOne()
+	{
+		while (count > 0) {
+			StateSpace.State s = ring[head];
+			int size = sizes[head];
+			ring[head] = null;
+			head = (head + 1) % ring.length;
+			if (s.referenced) {
+				s.referenced = false;
+				int i = (head + count - 1) % ring.length;
+				ring[i] = s;
+				sizes[i] = size;
+				continue;
+			}
+			count--;
+			used -= size;
+			if (s.neighboursPinned)
+				continue;
+			s.neighbours = null;
+			evictions.increment();
+			return;
+		}
+	}
+
+	/* Must hold the lock. */
+	private void grow()
+	{
+		StateSpace.State[] nr = new StateSpace.State[ring.length * 2];
+		int[] ns = new int[nr.length];
+		for (int i = 0; i < count; i++) {
+			nr[i] = ring[(head + i) % ring.length];
+			ns[i] = sizes[(head + i) % ring.length];
+		}
+		ring = nr;
+		sizes = ns;
+		head = 0;
+	}
+
+	/** The number of hits, if counted (see countHits). */
+	public long getHits()
+	{
+		return hits.sum();
+	}
+
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+
+	public long getEvictions()
+	{
+		return evictions.sum();
+	}
+
+	/** Estimated bytes currently cached (0 if unbounded). */
+	public synchronized long getUsed()
+	{
+		return used;
+	}
+
+	public String toString()
+	{
+		String ret = "Neighbour cache: ";
+		if (countHits)
+			ret += getHits() + " hits, ";
+		ret += getMisses() + " misses, " + getEvictions() + " evictions";
+		if (ring != null)
+			ret += ", " + (getUsed() >> 10) + " of " + (budget >> 10) + " KiB used";
+		return ret;
+	}
+}
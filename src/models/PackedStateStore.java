@@ -0,0 +1,170 @@
+package models;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import nl.utwente.ewi.fmt.EXPRES.expression.VariableSlot;
+
+/**
+ * Append-only store of state vectors in off-heap slabs, with every
+ * word of a vector packed into only as many bits as the LTS says it
+ * needs.
+ *
+ * A stored vector is addressed by a long reference: the slab number
+ * in the high half and the byte offset within the slab in the low
+ * half. Vectors are never removed, so states using this store must
+ * be kept alive for as long as the store.
+ */
+final class PackedStateStore
+{
+	private static final int FIRST_SLAB = 1 << 20;
+	private static final int MAX_SLAB = 1 << 26;
+
+	private final int[] widths;
+	private final int[] positions;
+	private final int bytesPerState;
+
+	private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+	/* Per-thread vector for getWords(). */
+	private final ThreadLocal<int[]> scratch;
+	/* Bytes in use in the last slab, guarded by this. */
+	private int fill;
+
+	/** @param widths The number of bits of each word of the vectors
+	 * (1 to 32). */
+	PackedStateStore(int[] widths)
+	{
+		this.widths = widths.clone();
+		positions = new int[widths.length];
+		int pos = 0;
+		for (int i = 0; i < widths.length; i++) {
+			if (widths[i] < 1 || widths[i] > 32)
+				throw new IllegalArgumentException("Invalid word width: " + widths[i]);
+			positions[i] = pos;
+			pos += widths[i];
+		}
+		bytesPerState = Math.max(1, (pos + 63) / 64) * 8;
+		int n = widths.length;
+		scratch = ThreadLocal.withInitial(() -> new int[n]);
+	}
+
+	/** Bytes used per stored vector. */
+	int bytesPerState()
+	{
+		return bytesPerState;
+	}
+
+	private static long mask(int width)
+	{
+		return (1L << width) - 1;
+	}
+
+	/** Store a copy of x and return its reference. */
+	long add(int[] x)
+	{
+		if (x.length != widths.length)
+			throw new IllegalArgumentException("State of length " + x.length + " in store for length " + widths.length);
+		long[] packed = new long[bytesPerState / 8];
+		for (int i = 0; i < x.length; i++) {
+			long v = x[i] & 0xFFFFFFFFL;
+			if ((v & ~mask(widths[i])) != 0)
+				throw new IllegalArgumentException("Value " + x[i] + " does not fit in " + widths[i] + " bits.");
+			int li = positions[i] >>> 6, sh = positions[i] & 63;
+			packed[li] |= v << sh;
+			if (sh + widths[i] > 64)
+				packed[li + 1] |= v >>> (64 - sh);
+		}
+		ByteBuffer slab;
+		int off;
+		synchronized(this) {
+			ByteBuffer[] ss = slabs;
+			slab = ss.length > 0 ? ss[ss.length - 1] : null;
+			if (slab == null || fill + bytesPerState > slab.capacity()) {
+				int size = FIRST_SLAB;
+				if (slab != null)
+					size = Math.min(MAX_SLAB, slab.capacity() * 2);
+				size = Math.max(size, bytesPerState);
+				slab = ByteBuffer.allocateDirect(size);
+				slab.order(ByteOrder.nativeOrder());
+				ss = Arrays.copyOf(ss, ss.length + 1);
+				ss[ss.length - 1] = slab;
+				slabs = ss;
+				fill = 0;
+			}
+			off = fill;
+			fill += bytesPerState;
+			for (int i = 0; i < packed.length; i++)
+				slab.putLong(off + i * 8, packed[i]);
+			/* Readers get the reference through the state table,
+			 * which publishes it after these writes. */
+			return ((long)(ss.length - 1) << 32) | off;
+		}
+	}
+
+	private ByteBuffer slab(long ref)
+	{
+		return slabs[(int)(ref >>> 32)];
+	}
+
+	private int word(ByteBuffer slab, int off, int i)
+	{
+		int li = positions[i] >>> 6, sh = positions[i] & 63;
+		long v = slab.getLong(off + li * 8) >>> sh;
+		if (sh + widths[i] > 64)
+			v |= slab.getLong(off + li * 8 + 8) << (64 - sh);
+		return (int)(v & mask(widths[i]));
+	}
+
+	/** Whether the vector at ref equals x, without unpacking it. */
+	boolean equals(long ref, int[] x)
+	{
+		if (x.length != widths.length)
+			return false;
+		ByteBuffer slab = slab(ref);
+		int off = (int)ref;
+		for (int i = 0; i < x.length; i++)
+			if (word(slab, off, i) != x[i])
+				return false;
+		return true;
+	}
+
+	/** Word i of the vector at ref. */
+	int word(long ref, int i)
+	{
+		return word(slab(ref), (int)ref, i);
+	}
+
+	/** The value of the variable in slot of the vector at ref. */
+	int read(long ref, VariableSlot slot)
+	{
+		int w = word(slab(ref), (int)ref, slot.word);
+		return ((w >> slot.lowBit) & slot.mask) + slot.offset;
+	}
+
+	/**
+	 * Unpack only the given words of the vector at ref, into an
+	 * array owned by the calling thread. The other words of the
+	 * array are unspecified, and it is only valid until the next
+	 * call by the same thread.
+	 */
+	int[] getWords(long ref, int[] words)
+	{
+		ByteBuffer slab = slab(ref);
+		int off = (int)ref;
+		int[] ret = scratch.get();
+		for (int i : words)
+			ret[i] = word(slab, off, i);
+		return ret;
+	}
+
+	/** Unpack the vector at ref into a new array. */
+	int[] get(long ref)
+	{
+		ByteBuffer slab = slab(ref);
+		int off = (int)ref;
+		int[] ret = new int[widths.length];
+		for (int i = 0; i < ret.length; i++)
+			ret[i] = word(slab, off, i);
+		return ret;
+	}
+}
@@ -4,18 +4,16 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.PrintStream;
-import java.lang.ref.SoftReference;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Comparator;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.WeakHashMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import nl.utwente.ewi.fmt.EXPRES.Property;
 import nl.utwente.ewi.fmt.EXPRES.expression.Expression;
+import nl.utwente.ewi.fmt.EXPRES.expression.VariableSlot;
 
 public abstract class StateSpace {
 	public static class Neighbours {
@@ -23,6 +21,9 @@ public abstract class StateSpace {
 		public final short[] orders;
 		public final double[] probs;
 		public final double exitRate;
+		/** The sum of probs. */
+		public final double totalProb;
+		private AliasTable aliasTable;
 
 		public Neighbours(State[] n, short[] o, double[] p, double R)
 		{
@@ -30,6 +31,22 @@ public abstract class StateSpace {
 			orders = o;
 			probs = p;
 			exitRate = R;
+			double total = 0;
+			for (double x : p)
+				total += x;
+			totalProb = total;
+		}
+
+		/** Alias table for drawing by probs, or null if there are
+		 * too few transitions to be worth one. */
+		public AliasTable getAliasTable()
+		{
+			/* Racing threads may build identical tables, which
+			 * is harmless since AliasTable is immutable. */
+			AliasTable ret = aliasTable;
+			if (ret == null && probs.length >= AliasTable.MIN_ENTRIES)
+				aliasTable = ret = new AliasTable(probs);
+			return ret;
 		}
 
 		public double getProbTo(State state)
@@ -43,25 +60,77 @@ public abstract class StateSpace {
 		}
 	}
 	public class State {
+		/** The state vector, or null if it is stored elsewhere
+		 * (use getState()). */
 		public final int[] state;
+		/* Red/blue flags of the state, see classify(). */
+		private int classification;
 		private int cachedHashCode = 0;
-		private SoftReference<Neighbours> neighbours;
+		/* Managed by the NeighbourCache, null if not cached. */
+		volatile Neighbours neighbours;
+		/* Used since the CLOCK hand last passed. */
+		boolean referenced;
+		/* Neighbours must never be evicted. */
+		boolean neighboursPinned;
 
 		public State(int[] s)
 		{
 			state = s;
-			neighbours = null;
+		}
+
+		/* For states whose vector is stored elsewhere. */
+		private State(int hash)
+		{
+			state = null;
+			cachedHashCode = hash;
+		}
+
+		public int[] getState()
+		{
+			return state;
+		}
+
+		/**
+		 * The state vector, of which only the given words (or
+		 * all, if words is null) need to be filled in. The array
+		 * may be reused by the next call from the same thread,
+		 * and must not be modified.
+		 */
+		public int[] getWords(int[] words)
+		{
+			return state;
+		}
+
+		/** The value of the variable stored in slot. */
+		public int read(VariableSlot slot)
+		{
+			return slot.read(state);
+		}
+
+		/** Whether this state has vector x. */
+		public boolean stateEquals(int[] x)
+		{
+			return Arrays.equals(state, x);
+		}
+
+		/* Whether the state table must keep this state alive. */
+		boolean pinned()
+		{
+			return false;
 		}
 
 		public boolean equals(Object o)
 		{
 			if (o == this)
 				return true;
-			if (o instanceof StateWrapper)
-				return Arrays.equals(state, ((StateWrapper)o).state);
-			else if (o instanceof State)
-				return Arrays.equals(state, ((State)o).state);
-			return false;
+			if (!(o instanceof State))
+				return false;
+			State other = (State)o;
+			if (other.state != null)
+				return stateEquals(other.state);
+			if (state != null)
+				return other.stateEquals(state);
+			return Arrays.equals(getState(), other.getState());
 		}
 
 		public int hashCode()
@@ -73,21 +142,32 @@ public abstract class StateSpace {
 
 		public String toString()
 		{
-			return Arrays.toString(state);
+			return Arrays.toString(getState());
 		}
 
 		public Neighbours getNeighbours()
 		{
-			Neighbours ns = null;
-			if (neighbours != null)
-				ns = neighbours.get();
-			if (ns == null) {
-				ns = findNeighbours(this);
-				neighbours = new SoftReference<>(ns);
-			}
+			Neighbours ns = neighbours;
+			if (ns == null)
+				return findNeighbours(this);
+			if (!referenced)
+				referenced = true;
+			neighbourCache.hit();
 			return ns;
 		}
 
+		/** Like getNeighbours(), but keeps the returned object
+		 * as the neighbours of this state from now on. */
+		public Neighbours pinNeighbours()
+		{
+			return neighbourCache.pin(this, getNeighbours());
+		}
+
+		private Neighbours cache(Neighbours ns)
+		{
+			return neighbourCache.add(this, ns);
+		}
+
 		public double getProbTo(State state)
 		{
 			Neighbours nbs = getNeighbours();
@@ -110,40 +190,48 @@ public abstract class StateSpace {
 			return Short.MAX_VALUE;
 		}
 	}
-	private static class StateWrapper {
-		public int[] state;
+	/** State whose vector is kept in the packed store. */
+	private class PackedState extends State {
+		private final long ref;
 
-		public StateWrapper(int[] s)
+		private PackedState(int[] s)
 		{
-			state = s;
+			super(Arrays.hashCode(s));
+			ref = store.add(s);
 		}
 
-		public boolean equals(Object o)
+		public int[] getState()
 		{
-			if (o instanceof State)
-				return Arrays.equals(state, ((State)o).state);
-			if (!(o instanceof StateWrapper))
-				return false;
-			return Arrays.equals(state, ((StateWrapper)o).state);
+			return store.get(ref);
 		}
 
-		public int hashCode()
+		public int[] getWords(int[] words)
+		{
+			if (words == null)
+				return store.get(ref);
+			return store.getWords(ref, words);
+		}
+
+		public int read(VariableSlot slot)
 		{
-			return Arrays.hashCode(state);
+			return store.read(ref, slot);
 		}
 
-		public Object clone()
+		public boolean stateEquals(int[] x)
 		{
-			return new StateWrapper(state);
+			return store.equals(ref, x);
+		}
+
+		/* The store cannot free the vector, so the object must
+		 * not be dropped and recreated. */
+		boolean pinned()
+		{
+			return true;
 		}
 	}
 	public class HPCState extends State {
 		public final Neighbours origNeighbours;
 		public final double[] meanTimes;
-		private final Neighbours lockedNeighbours; /* Prevent the soft
-							      reference to the
-							      neighbours array
-							      being freed */
 		public HPCState(State orig, State[] ns, short[] os, double[] ps)
 		{
 			this(orig, ns, os, ps, null);
@@ -151,38 +239,61 @@ public abstract class StateSpace {
 
 		public HPCState(State orig, State[] ns, short[] os, double[] ps, double[] mt)
 		{
-			super(orig.state);
+			super(orig.getState());
 			Neighbours prevNs = orig.getNeighbours();
 			origNeighbours = new Neighbours(prevNs.neighbours, null, prevNs.probs, prevNs.exitRate);
-			lockedNeighbours = explored(this, ns, os, ps, prevNs.exitRate);
+			/* Kept outside the cache, so never evicted. */
+			neighbours = new Neighbours(ns, os, ps, prevNs.exitRate);
 			meanTimes = mt;
 		}
+
+		/* HPC states cannot be recreated from their vectors. */
+		boolean pinned()
+		{
+			return true;
+		}
 	}
 
-	private WeakHashMap<State, State> knownStates;
+	private final StateTable knownStates;
+	private final PackedStateStore store;
+	private final NeighbourCache neighbourCache;
 	private volatile State initialState;
 	public final double epsilon;
-	/* Locks are public since HPC removal needs synchronization
-	 * across multiple state updates.
-	 */
-	public Lock writeLock, readLock;
+
+	/** Estimated bytes of explored neighbours to cache per state
+	 * space, or negative for a quarter of the maximum heap size. */
+	public static long neighbourCacheSize = -1;
 
 	public StateSpace(double epsilon, int[] initialState) {
+		this(epsilon, initialState, null);
+	}
+
+	/**
+	 * @param packedWidths If not null, keep the state vectors in
+	 * off-heap slabs, with word i packed into packedWidths[i] bits.
+	 */
+	protected StateSpace(double epsilon, int[] initialState,
+	                     int[] packedWidths)
+	{
 		this.epsilon = epsilon;
-		knownStates = new WeakHashMap<>();
-		ReentrantReadWriteLock locks = new ReentrantReadWriteLock();
-		writeLock = locks.writeLock();
-		readLock = locks.readLock();
+		knownStates = new StateTable();
+		long budget = neighbourCacheSize;
+		if (budget < 0)
+			budget = Runtime.getRuntime().maxMemory() / 4;
+		neighbourCache = new NeighbourCache(budget);
+		if (packedWidths != null)
+			store = new PackedStateStore(packedWidths);
+		else
+			store = null;
 		this.initialState = findOrCreate(initialState);
 	}
 
 	/** Follows the behaviour of snapshot() */
 	protected StateSpace(StateSpace other) {
-		knownStates = new WeakHashMap<>(other.knownStates);
+		knownStates = new StateTable(other.knownStates);
+		store = other.store;
+		neighbourCache = other.neighbourCache;
 		epsilon = other.epsilon;
-		ReentrantReadWriteLock locks = new ReentrantReadWriteLock();
-		writeLock = locks.writeLock();
-		readLock = locks.readLock();
 		initialState = other.initialState;
 	}
 
@@ -190,37 +301,32 @@ public abstract class StateSpace {
 		return knownStates.size();
 	}
 
+	public NeighbourCache getNeighbourCache() {
+		return neighbourCache;
+	}
+
+	/* Replace all references to states by their current versions
+	 * (i.e., HPCs), while blocking any further changes. */
 	public void cleanupHPCs()
 	{
-		StateWrapper w = cachedWrapper.get();
-		if (w == null) {
-			w = new StateWrapper(null);
-			cachedWrapper.set(w);
-		}
 		try {
-			writeLock.lock();
-			for (State s : knownStates.keySet()) {
-				Neighbours nbs = null;
-				if (s.neighbours != null)
-					nbs = s.neighbours.get();
+			knownStates.lockAll();
+			knownStates.forEach(s -> {
+				Neighbours nbs = s.neighbours;
 				if (nbs == null)
-					continue;
+					return;
 				State[] arr = nbs.neighbours;
-				for (int i = 0; i < arr.length; i++) {
-					w.state = arr[i].state;
-					arr[i] = knownStates.get(w);
-				}
+				for (int i = 0; i < arr.length; i++)
+					arr[i] = knownStates.get(arr[i]);
 				if (!(s instanceof HPCState))
-					continue;
+					return;
 				nbs = ((HPCState)s).origNeighbours;
 				arr = nbs.neighbours;
-				for (int i = 0; i < arr.length; i++) {
-					w.state = arr[i].state;
-					arr[i] = knownStates.get(w);
-				}
-			}
+				for (int i = 0; i < arr.length; i++)
+					arr[i] = knownStates.get(arr[i]);
+			});
 		} finally {
-			writeLock.unlock();
+			knownStates.unlockAll();
 		}
 	}
 
@@ -230,62 +336,38 @@ public abstract class StateSpace {
 	{
 		if (orig instanceof HPCState)
 			return;
-		try {
-			writeLock.lock();
-			HPCState n = new HPCState(orig, newNeighbours,
-			                          newOrders, newProbs,
-			                          meanTimes);
-			knownStates.remove(orig);
-			knownStates.put(n, n);
-			if (orig == initialState)
-				initialState = n;
-		} finally {
-			writeLock.unlock();
-		}
+		HPCState n = new HPCState(orig, newNeighbours,
+		                          newOrders, newProbs,
+		                          meanTimes);
+		/* Atomically replaces orig for all lookups. */
+		knownStates.put(n);
+		if (orig == initialState)
+			initialState = n;
 	}
 
-	private ThreadLocal<StateWrapper> cachedWrapper = new ThreadLocal<>();
-
 	public State find(int[] x) {
-		StateWrapper w = cachedWrapper.get();
-		if (w == null) {
-			w = new StateWrapper(x);
-			cachedWrapper.set(w);
-		}
-		w.state = x;
-		try {
-			readLock.lock();
-			return knownStates.get(w);
-		} finally {
-			readLock.unlock();
-		}
+		return knownStates.get(x);
 	}
 
 	public State find(State x) {
-		try {
-			readLock.lock();
-			return knownStates.get(x);
-		} finally {
-			readLock.unlock();
-		}
+		return knownStates.get(x);
 	}
 
 	protected State findOrCreate(int[] x) {
-		State s;
-		s = find(x);
-		if(s == null) {
-			try {
-				writeLock.lock();
-				s = find(x);
-				if (s == null) {
-					s = new State(x);
-					knownStates.put(s, s);
-				}
-			} finally {
-				writeLock.unlock();
-			}
-		}
-		return s;
+		return knownStates.getOrCreate(x, this::newState);
+	}
+
+	/** Like findOrCreate(), but x may be reused by the caller, as
+	 * it is only copied if a new state must be created. */
+	protected State findOrCreateCopy(int[] x) {
+		return knownStates.getOrCreate(x, v -> newState(v.clone()));
+	}
+
+	/** Create the object for a newly found state. */
+	protected State newState(int[] x) {
+		if (store != null)
+			return new PackedState(x);
+		return new State(x);
 	}
 
 	protected static Neighbours explored(State s, State[] neighbours,
@@ -294,8 +376,7 @@ public abstract class StateSpace {
 	{
 		Neighbours ns = new Neighbours(neighbours, orders, probs,
 		                               exitRate);
-		s.neighbours = new SoftReference<Neighbours>(ns);
-		return ns;
+		return s.cache(ns);
 	}
 
 	public State getInitialState()
@@ -310,11 +391,86 @@ public abstract class StateSpace {
 	 */
 	protected abstract Neighbours findNeighbours(State x);
 
+	private static final int KNOWN = 1, RED = 2, BLUE = 4;
+	private static final int EPOCH_SHIFT = 3;
+
+	private static class Classification {
+		final Property prop;
+		final int epoch;
+		Classification(Property prop, int epoch) {
+			this.prop = prop;
+			this.epoch = epoch;
+		}
+	}
+	/* The property the flags of the states currently refer to.
+	 * Switching to a property with another goal starts a new epoch,
+	 * invalidating all flags of older epochs; switching to one with
+	 * the same goal (such as a renamed copy) keeps the epoch. */
+	private volatile Classification classification = new Classification(null, 0);
+
+	private int classificationEpoch(Property prop) {
+		Classification c = classification;
+		if (c.prop == prop)
+			return c.epoch;
+		synchronized(this) {
+			c = classification;
+			if (c.prop != prop) {
+				int epoch = c.epoch;
+				if (c.prop == null || !c.prop.sameGoal(prop))
+					epoch++;
+				c = new Classification(prop, epoch);
+				classification = c;
+			}
+			return c.epoch;
+		}
+	}
+
+	private int classify(Property prop, State s) {
+		int epoch = classificationEpoch(prop);
+		int flags = s.classification;
+		if ((flags & KNOWN) != 0 && (flags >>> EPOCH_SHIFT) == epoch)
+			return flags;
+		flags = KNOWN;
+		if (prop.computeRed(this, s))
+			flags |= RED;
+		if (prop.computeBlue(this, s))
+			flags |= BLUE;
+		/* A single int write, so concurrent readers see either
+		 * the old or the new flags. */
+		flags |= epoch << EPOCH_SHIFT;
+		s.classification = flags;
+		return flags;
+	}
+
+	/** Whether the state is red for the property, evaluated once per
+	 * state. */
+	public boolean isRed(Property prop, State s) {
+		return (classify(prop, s) & RED) != 0;
+	}
+
+	/** Whether the state is blue for the property, evaluated once
+	 * per state. */
+	public boolean isBlue(Property prop, State s) {
+		return (classify(prop, s) & BLUE) != 0;
+	}
+
+	/** A state space for the same model that has not explored any
+	 * states yet, or this one if it cannot make one. */
+	public StateSpace unexplored() {
+		return this;
+	}
+
 	public String stateString(State state) {
-		return Arrays.toString(state.state);
+		return Arrays.toString(state.getState());
 	}
 
 	public Number getVarValue(String variable, State state) {
 		return null;
 	}
+
+	/** Where the variable is stored in the state vectors, or null
+	 * if it is not stored directly. */
+	public VariableSlot getVarSlot(String variable) {
+		return null;
+	}
 }
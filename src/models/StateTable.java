@@ -0,0 +1,327 @@
+package models;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Concurrent table interning states by their state vectors.
+ *
+ * The table is split by hash into stripes, each an open-addressing
+ * table (with linear probing) guarded by its own lock. Lookups take no
+ * locks at all. Insertions and replacements lock only their stripe.
+ *
+ * Ordinary states are only weakly referenced: a state that is not
+ * referenced from anywhere else is dropped, and its slot is reclaimed
+ * on the next insertion into its stripe. Since any live State object
+ * stays in the table, there are never two objects for one vector.
+ * States that cannot be recreated from their vectors (HPC states,
+ * and states with packed vectors) are held strongly.
+ */
+final class StateTable
+{
+	private static final class Entry extends WeakReference<StateSpace.State> {
+		final int hash;
+		/* Keeps states alive that cannot be recreated. */
+		final StateSpace.State pinned;
+		Entry(StateSpace.State s, int hash,
+		      ReferenceQueue<StateSpace.State> queue)
+		{
+			super(s, queue);
+			this.hash = hash;
+			if (s != null && s.pinned())
+				pinned = s;
+			else
+				pinned = null;
+		}
+	}
+
+	/** Marks a removed entry, which must not end a probe sequence. */
+	private static final Entry TOMBSTONE = new Entry(null, 0, null);
+	private static final int MIN_CAPACITY = 16;
+
+	private static final class Stripe {
+		final ReentrantLock lock = new ReentrantLock();
+		/* Replaced as a whole on resizing, after which the old
+		 * array is never written again. */
+		volatile Entry[] table = new Entry[MIN_CAPACITY];
+		/* Non-null slots, including tombstones. */
+		int used;
+		/* Entries not yet removed (some may have been cleared). */
+		int live;
+		final ReferenceQueue<StateSpace.State> queue = new ReferenceQueue<>();
+	}
+
+	private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(Entry[].class);
+
+	private final Stripe[] stripes;
+	private final int stripeShift;
+
+	StateTable()
+	{
+		int n = Runtime.getRuntime().availableProcessors() * 4;
+		n = Math.max(16, Math.min(1024, Integer.highestOneBit(n - 1) << 1));
+		stripes = new Stripe[n];
+		for (int i = 0; i < n; i++)
+			stripes[i] = new Stripe();
+		stripeShift = 32 - Integer.numberOfTrailingZeros(n);
+	}
+
+	/** Follows the behaviour of snapshot() */
+	StateTable(StateTable other)
+	{
+		this();
+		other.lockAll();
+		try {
+			other.forEach(s -> put(s));
+		} finally {
+			other.unlockAll();
+		}
+	}
+
+	/* Hash codes of similar states are similar, so mix them before
+	 * using the high bits for the stripe and the low bits for the
+	 * slot. */
+	private static int spread(int h)
+	{
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private Stripe stripe(int h)
+	{
+		return stripes[h >>> stripeShift];
+	}
+
+	public StateSpace.State get(int[] x)
+	{
+		return get(x, Arrays.hashCode(x));
+	}
+
+	public StateSpace.State get(StateSpace.State s)
+	{
+		int h = s.hashCode();
+		int sh = spread(h);
+		Stripe st = stripe(sh);
+		Entry[] t;
+		StateSpace.State ret;
+		do {
+			t = st.table;
+			ret = get(t, s, h, sh);
+		} while (ret == null && t != st.table);
+		return ret;
+	}
+
+	private static StateSpace.State get(Entry[] t, StateSpace.State q, int h, int sh)
+	{
+		int mask = t.length - 1;
+		for (int i = sh & mask; ; i = (i + 1) & mask) {
+			Entry e = (Entry)SLOT.getAcquire(t, i);
+			if (e == null)
+				return null;
+			if (e.hash != h)
+				continue;
+			StateSpace.State s = e.get();
+			if (s != null && s.equals(q))
+				return s;
+		}
+	}
+
+	private StateSpace.State get(int[] x, int h)
+	{
+		int sh = spread(h);
+		Stripe st = stripe(sh);
+		Entry[] t;
+		StateSpace.State ret;
+		do {
+			t = st.table;
+			ret = get(t, x, h, sh);
+			/* A miss only counts if the table was not resized
+			 * while we were probing it. */
+		} while (ret == null && t != st.table);
+		return ret;
+	}
+
+	private static StateSpace.State get(Entry[] t, int[] x, int h, int sh)
+	{
+		int mask = t.length - 1;
+		for (int i = sh & mask; ; i = (i + 1) & mask) {
+			Entry e = (Entry)SLOT.getAcquire(t, i);
+			if (e == null)
+				return null;
+			if (e.hash != h)
+				continue;
+			StateSpace.State s = e.get();
+			if (s != null && s.stateEquals(x))
+				return s;
+		}
+	}
+
+	/**
+	 * Return the state with vector x, creating and inserting it with
+	 * create if it is not yet present.
+	 */
+	public StateSpace.State getOrCreate(int[] x,
+			Function<int[], StateSpace.State> create)
+	{
+		int h = Arrays.hashCode(x);
+		StateSpace.State ret = get(x, h);
+		if (ret != null)
+			return ret;
+		Stripe st = stripe(spread(h));
+		st.lock.lock();
+		try {
+			ret = get(st.table, x, h, spread(h));
+			if (ret == null) {
+				ret = create.apply(x);
+				insert(st, ret, h);
+			}
+			return ret;
+		} finally {
+			st.lock.unlock();
+		}
+	}
+
+	/** Insert s, replacing any state with the same vector. */
+	public void put(StateSpace.State s)
+	{
+		int h = s.hashCode();
+		Stripe st = stripe(spread(h));
+		st.lock.lock();
+		try {
+			if (!replace(st, s, h))
+				insert(st, s, h);
+		} finally {
+			st.lock.unlock();
+		}
+	}
+
+	/* Must hold the lock of the stripe. */
+	private static boolean replace(Stripe st, StateSpace.State s, int h)
+	{
+		Entry[] t = st.table;
+		int mask = t.length - 1;
+		for (int i = spread(h) & mask; ; i = (i + 1) & mask) {
+			Entry e = t[i];
+			if (e == null)
+				return false;
+			if (e.hash != h)
+				continue;
+			StateSpace.State old = e.get();
+			if (old != null && old.equals(s)) {
+				SLOT.setRelease(t, i, new Entry(s, h, st.queue));
+				return true;
+			}
+		}
+	}
+
+	/* Must hold the lock of the stripe, and s must not be present. */
+	private static void insert(Stripe st, StateSpace.State s, int h)
+	{
+		expungeStale(st);
+		Entry[] t = st.table;
+		if ((st.used + 1) * 4 > t.length * 3) {
+			t = resize(st);
+		}
+		int mask = t.length - 1;
+		int i = spread(h) & mask;
+		while (t[i] != null && t[i] != TOMBSTONE)
+			i = (i + 1) & mask;
+		if (t[i] == null)
+			st.used++;
+		st.live++;
+		SLOT.setRelease(t, i, new Entry(s, h, st.queue));
+	}
+
+	private static Entry[] resize(Stripe st)
+	{
+		Entry[] old = st.table;
+		int live = 0;
+		for (Entry e : old)
+			if (e != null && e != TOMBSTONE && e.get() != null)
+				live++;
+		int cap = MIN_CAPACITY;
+		while (cap < live * 4)
+			cap *= 2;
+		Entry[] t = new Entry[cap];
+		int mask = cap - 1;
+		for (Entry e : old) {
+			if (e == null || e == TOMBSTONE || e.get() == null)
+				continue;
+			int i = spread(e.hash) & mask;
+			while (t[i] != null)
+				i = (i + 1) & mask;
+			t[i] = e;
+		}
+		st.used = st.live = live;
+		/* Publishes the filled array. */
+		st.table = t;
+		return t;
+	}
+
+	/* Must hold the lock of the stripe. */
+	private static void expungeStale(Stripe st)
+	{
+		Object o;
+		while ((o = st.queue.poll()) != null) {
+			Entry e = (Entry)o;
+			Entry[] t = st.table;
+			int mask = t.length - 1;
+			for (int i = spread(e.hash) & mask; t[i] != null; i = (i + 1) & mask) {
+				if (t[i] == e) {
+					SLOT.setRelease(t, i, TOMBSTONE);
+					st.live--;
+					break;
+				}
+			}
+		}
+	}
+
+	public int size()
+	{
+		int ret = 0;
+		for (Stripe st : stripes) {
+			st.lock.lock();
+			try {
+				expungeStale(st);
+				ret += st.live;
+			} finally {
+				st.lock.unlock();
+			}
+		}
+		return ret;
+	}
+
+	/** Block all modifications until unlockAll(). */
+	public void lockAll()
+	{
+		for (Stripe st : stripes)
+			st.lock.lock();
+	}
+
+	public void unlockAll()
+	{
+		for (int i = stripes.length - 1; i >= 0; i--)
+			stripes[i].lock.unlock();
+	}
+
+	/** Apply f to all states. Should be called with all stripes
+	 * locked. */
+	public void forEach(Consumer<StateSpace.State> f)
+	{
+		for (Stripe st : stripes) {
+			for (Entry e : st.table) {
+				if (e == null)
+					continue;
+				StateSpace.State s = e.get();
+				if (s != null)
+					f.accept(s);
+			}
+		}
+	}
+}
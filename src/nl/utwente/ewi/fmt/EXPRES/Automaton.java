@@ -41,6 +41,26 @@ public class Automaton implements LTS {
 	private Expression guards[][];
 	private Map<String, Expression> assignments[][];
 	private Map<String, Integer> transitions[];
+	/* Kinds and numeric values (see TransitionBuffer) of the labels
+	 * of each state, parsed when first needed. Since the rows of
+	 * 'labels' are replaced rather than modified once built, an
+	 * entry is valid as long as it refers to the current row. */
+	private static class ParsedLabels {
+		final String[] labels;
+		final byte[] kinds;
+		final double[] values;
+		ParsedLabels(String[] ls)
+		{
+			labels = ls;
+			kinds = new byte[ls.length];
+			values = new double[ls.length];
+			for (int i = 0; i < ls.length; i++) {
+				kinds[i] = TransitionBuffer.kindOf(ls[i]);
+				values[i] = TransitionBuffer.valueOf(ls[i]);
+			}
+		}
+	}
+	private ParsedLabels[] parsedLabels = new ParsedLabels[0];
 	private final static boolean VERBOSE = false;
 	private final static boolean DEBUG = false;
 
@@ -720,6 +740,41 @@ public class Automaton implements LTS {
 		return labels[from][n];
 	}
 
+	private ParsedLabels getParsedLabels(int from)
+	{
+		ParsedLabels[] all = parsedLabels;
+		if (all.length != labels.length) {
+			/* Racing threads may each allocate a new
+			 * array, which only loses some cached rows. */
+			all = Arrays.copyOf(all, labels.length);
+			parsedLabels = all;
+		}
+		ParsedLabels ret = all[from];
+		if (ret == null || ret.labels != labels[from]) {
+			ret = new ParsedLabels(labels[from]);
+			all[from] = ret;
+		}
+		return ret;
+	}
+
+	/**
+	 * @return The kind (as in TransitionBuffer) of the n'th
+	 * transition from state 'from'.
+	 */
+	public byte getTransitionKind(int from, int n)
+	{
+		return getParsedLabels(from).kinds[n];
+	}
+
+	/**
+	 * @return The rate, probability or delay of the n'th transition
+	 * from state 'from', or NaN if its label has none.
+	 */
+	public double getTransitionValue(int from, int n)
+	{
+		return getParsedLabels(from).values[n];
+	}
+
 	/**
 	 * @return The guard of the n'th transition from state 'from',
 	 * or null if 'from' has fewer than n transitions.
@@ -1415,6 +1470,17 @@ stateLoop:
 		return 1;
 	}
 
+	public int[] getStateBits()
+	{
+		return new int[] {bitsFor(getNumStates() - 1)};
+	}
+
+	/** The number of bits needed to store values from 0 to max. */
+	static int bitsFor(int max)
+	{
+		return Math.max(1, 32 - Integer.numberOfLeadingZeros(max));
+	}
+
 	public String toString()
 	{
 		StringBuilder ret = new StringBuilder();
@@ -25,8 +25,10 @@ import nl.utwente.ewi.fmt.EXPRES.JaniModel.JaniType;
 import nl.utwente.ewi.fmt.EXPRES.JaniModel.JaniVariable;
 import nl.utwente.ewi.fmt.EXPRES.expression.ConstantExpression;
 import nl.utwente.ewi.fmt.EXPRES.expression.BinaryExpression;
+import nl.utwente.ewi.fmt.EXPRES.expression.CompiledExpression;
 import nl.utwente.ewi.fmt.EXPRES.expression.Expression;
 import nl.utwente.ewi.fmt.EXPRES.expression.VariableExpression;
+import nl.utwente.ewi.fmt.EXPRES.expression.VariableSlot;
 
 import algorithms.Simulator;
 
@@ -72,6 +74,35 @@ public class Composition implements MarkableLTS
 	 */
 	private int[] haveIndepTransitions;
 	private int[][][] indepTransitions;
+	/* Kinds and values of the labels of the synchronized vectors,
+	 * parsed once by buildVectorTransitions(). */
+	private byte[] vectorKinds;
+	private double[] vectorValues;
+
+	/* Per-thread scratch space of getSuccessors(). */
+	private static class Scratch {
+		final int[] t;
+		final TreeMap<String, Expression> assigns = new TreeMap<>();
+		Scratch(int n) {
+			t = new int[n];
+		}
+	}
+	private ThreadLocal<Scratch> scratch;
+
+	/* Guard of a transition, compiled against the global variables
+	 * (code is null if it cannot be compiled). */
+	private static final class CompiledGuard {
+		final Expression guard;
+		final CompiledExpression code;
+		CompiledGuard(Expression g, CompiledExpression c) {
+			guard = g;
+			code = c;
+		}
+	}
+	/* guardCode[a][s][j] for transition j from state s of automaton
+	 * a, filled in on first use. Racing threads may only compile a
+	 * guard more than once. */
+	private CompiledGuard[][][] guardCode;
 	private final static boolean VERBOSE = false;
 	private final static boolean DEBUG = false;
 
@@ -1106,6 +1137,7 @@ public class Composition implements MarkableLTS
 			changed = removeImpossibleActions();
 		}
 		rejectedFor = new ThreadLocal<int[]>();
+		scratch = ThreadLocal.withInitial(() -> new Scratch(automata.length));
 		TreeMap<String, Integer> mins = new TreeMap<>();
 		TreeMap<String, Integer> maxs = new TreeMap<>();
 		TreeSet<String> unspecifieds = new TreeSet<>();
@@ -1201,6 +1233,13 @@ public class Composition implements MarkableLTS
 			}
 		}
 
+		vectorKinds = new byte[synchronizedLabels.length];
+		vectorValues = new double[synchronizedLabels.length];
+		for (int v = 0; v < synchronizedLabels.length; v++) {
+			vectorKinds[v] = TransitionBuffer.kindOf(synchronizedLabels[v]);
+			vectorValues[v] = TransitionBuffer.valueOf(synchronizedLabels[v]);
+		}
+
 		/* Build rate transition list */
 		haveIndepTransitions = new int[0];
 		indepTransitions = new int[0][][];
@@ -1272,6 +1311,23 @@ public class Composition implements MarkableLTS
 		return size;
 	}
 
+	public int[] getStateBits()
+	{
+		int[] ret = new int[stateSize()];
+		for (int i = 0; i < automata.length; i++)
+			ret[i] = Automaton.bitsFor(automata[i].getNumStates() - 1);
+		/* Global variables are already packed, but the highest
+		 * word may be partially used. */
+		int maxBit = -1;
+		for (int[] vals : globalVars.values())
+			maxBit = Math.max(maxBit, vals[1]);
+		for (int i = automata.length; i < ret.length; i++)
+			ret[i] = 32;
+		if (maxBit >= 0)
+			ret[ret.length - 1] = maxBit % 32 + 1;
+		return ret;
+	}
+
 	public Map<String, Integer> getVarValues(int[] state)
 	{
 		if (globalVars.isEmpty())
@@ -1337,6 +1393,20 @@ public class Composition implements MarkableLTS
 		return val;
 	}
 
+	public VariableSlot getVarSlot(String var)
+	{
+		if (var.equals("marked") && globalVars.isEmpty())
+			return new VariableSlot(automata.length);
+		int[] vData = globalVars.get(var);
+		if (vData == null)
+			return null;
+		int word = vData[0] / 32 + automata.length;
+		int lowBit = vData[0] % 32;
+		return new VariableSlot(word, lowBit,
+		                        lowBit + vData[1] - vData[0],
+		                        vData[3]);
+	}
+
 	private void doAssigns(int[] state, Map<String, Expression> assigns)
 	{
 		for (String name : assigns.keySet()) {
@@ -1365,9 +1435,38 @@ public class Composition implements MarkableLTS
 		}
 	}
 
+	/** The compiled form of guard g of transition j from state s of
+	 * automaton a, or null if it cannot be compiled. */
+	private CompiledExpression compiledGuard(int a, int s, int j,
+	                                         Expression g)
+	{
+		CompiledGuard[][][] all = guardCode;
+		if (all == null || all.length != automata.length)
+			guardCode = all = new CompiledGuard[automata.length][][];
+		CompiledGuard[][] aut = all[a];
+		if (aut == null || aut.length <= s) {
+			int n = Math.max(automata[a].getNumStates(), s + 1);
+			all[a] = aut = new CompiledGuard[n][];
+		}
+		CompiledGuard[] gs = aut[s];
+		if (gs == null || gs.length <= j) {
+			gs = gs == null ? new CompiledGuard[j + 1]
+			                : Arrays.copyOf(gs, j + 1);
+			aut[s] = gs;
+		}
+		/* Guards may be replaced while building compositions. */
+		CompiledGuard c = gs[j];
+		if (c == null || c.guard != g) {
+			c = new CompiledGuard(g, g.compile(this::getVarSlot));
+			gs[j] = c;
+		}
+		return c.code;
+	}
+
 	private Set<LTS.Transition> getUnsynchronizedTransitions(int[] from)
 	{
-		Map<String, Integer> values = getVarValues(from);
+		/* Only computed if some guard needs them. */
+		Map<String, Integer> values = null;
 		TreeSet<LTS.Transition> ret = new TreeSet<LTS.Transition>();
 		for (int i = 0; i < automata.length; i++) {
 			for (int j = 0; true; j++) {
@@ -1376,7 +1475,14 @@ public class Composition implements MarkableLTS
 					break;
 				Expression g = automata[i].getTransitionGuard(from[i], j);
 				boolean guardOK = true;
-				if (g != null) {
+				CompiledExpression c = null;
+				if (g != null)
+					c = compiledGuard(i, from[i], j, g);
+				if (c != null) {
+					guardOK = c.evaluateBoolean(from);
+				} else if (g != null) {
+					if (values == null)
+						values = getVarValues(from);
 					Number v = g.evaluate(values);
 					if (v == null) {
 						System.err.println("Values: " + getVarValues(from));
@@ -1402,8 +1508,28 @@ public class Composition implements MarkableLTS
 	{
 		if (vectorAutomata == null)
 			return getUnsynchronizedTransitions(from);
-		ArrayList<LTS.Transition> ret = new ArrayList<LTS.Transition>();
-		int t[] = new int[automata.length];
+		TransitionBuffer buf = new TransitionBuffer(from.length);
+		getSuccessors(from, buf);
+		ArrayList<LTS.Transition> ret = new ArrayList<>(buf.size());
+		for (int i = 0; i < buf.size(); i++) {
+			ret.add(new LTS.Transition(buf.label(i), buf.target(i),
+			                           ConstantExpression.TRUE,
+			                           Map.of()));
+		}
+		return new LTS.TransitionSet(ret, true);
+	}
+
+	public void getSuccessors(int[] from, TransitionBuffer buf)
+	{
+		buf.clear();
+		if (vectorAutomata == null) {
+			for (LTS.Transition t : getUnsynchronizedTransitions(from))
+				buf.add(t.label, t.target);
+			return;
+		}
+		Scratch sc = scratch.get();
+		int t[] = sc.t;
+		int[] target = buf.scratch;
 
 		/* First, 'rate' transitions are always taken
 		 * unsynchronized.
@@ -1412,15 +1538,21 @@ public class Composition implements MarkableLTS
 			int a = haveIndepTransitions[i];
 			Automaton aut = automata[a];
 			int orig = from[a];
-			if (indepTransitions[i][orig] == null)
+			int[] ts = indepTransitions[i][orig];
+			if (ts == null)
 				continue;
-			for (int j : indepTransitions[i][orig]) {
+			for (int j : ts) {
 				String l = aut.getTransitionLabel(orig, j);
 				if (l == null)
 					break;
-				Expression g = automata[i].getTransitionGuard(orig, j);
+				Expression g = aut.getTransitionGuard(orig, j);
 				boolean guardOK = true;
-				if (g != null) {
+				CompiledExpression c = null;
+				if (g != null)
+					c = compiledGuard(a, orig, j, g);
+				if (c != null) {
+					guardOK = c.evaluateBoolean(from);
+				} else if (g != null) {
 					Number v = g.evaluate(this, from);
 					if (v == null) {
 						System.err.println("Values: " + getVarValues(from));
@@ -1430,13 +1562,14 @@ public class Composition implements MarkableLTS
 				}
 				if (!guardOK)
 					continue;
-				int[] target = from.clone();
+				System.arraycopy(from, 0, target, 0, from.length);
 				target[a] = aut.getTransitionTarget(orig, j);
 				Map<String, Expression> assigns = aut.getAssignments(orig, j);
 				doAssigns(target, transientGlobals);
 				if (assigns != null)
 					doAssigns(target, assigns);
-				ret.add(new LTS.Transition(l, target, ConstantExpression.TRUE, Map.of()));
+				buf.add(l, aut.getTransitionKind(orig, j),
+				        aut.getTransitionValue(orig, j), target);
 			}
 		}
 
@@ -1449,17 +1582,17 @@ public class Composition implements MarkableLTS
 			rejectedFor.set(rejCache);
 		}
 
+		/* Only computed if some guard needs them. */
+		Map<String, Integer> values = null;
 		for (int i = 0; i < vectorTransitions.length; i++) {
 			/* Check the rejection cache */
 			if (from[rejCache[2*i]] == rejCache[2*i+1])
 				continue;
 
-			int[] target;
-			TreeMap<String, Expression> assigns;
+			TreeMap<String, Expression> assigns = sc.assigns;
+			assigns.clear();
 			if (!transientGlobals.isEmpty())
-				assigns = new TreeMap<>(transientGlobals);
-			else
-				assigns = null;
+				assigns.putAll(transientGlobals);
 
 			int needed[][] = vectorTransitions[i];
 
@@ -1479,23 +1612,29 @@ public class Composition implements MarkableLTS
 				t[j] = a.getTransitionTarget(origin, k);
 				Expression g = a.getTransitionGuard(origin, k);
 				if (g != null && g != ConstantExpression.TRUE) {
-					Number v = g.evaluate(getVarValues(from));
-					if (v == null)
-						throw new UnsupportedOperationException("Unable to evaluate guard: " + g);
+					CompiledExpression c;
+					c = compiledGuard(j, origin, k, g);
+					boolean guardOK;
+					if (c != null) {
+						guardOK = c.evaluateBoolean(from);
+					} else {
+						if (values == null)
+							values = getVarValues(from);
+						Number v = g.evaluate(values);
+						if (v == null)
+							throw new UnsupportedOperationException("Unable to evaluate guard: " + g);
+						guardOK = v.doubleValue() != 0;
+					}
 					/* Don't cache since the cache
 					 * doesn't include global
 					 * variable values.
 					 */
-					if (v.doubleValue() == 0)
+					if (!guardOK)
 						break;
 				}
 				Map<String, Expression> as = a.getAssignments(origin, k);
-				if (as != null) {
-					if (assigns == null)
-						assigns = new TreeMap<>(as);
-					else
-						assigns.putAll(as);
-				}
+				if (as != null)
+					assigns.putAll(as);
 			}
 			if (j >= 0)
 				continue;
@@ -1504,7 +1643,7 @@ public class Composition implements MarkableLTS
 			 * nondeterminism.
 			 */
 			Integer m;
-			target = from.clone();
+			System.arraycopy(from, 0, target, 0, from.length);
 			if (null != markLabels) {
 				m = markLabels.get(synchronizedLabels[i]);
 				if (m != null)
@@ -1514,16 +1653,16 @@ public class Composition implements MarkableLTS
 				if (needed[j] != null)
 					target[j] = t[j];
 			}
-			if (assigns != null)
+			if (!assigns.isEmpty())
 				doAssigns(target, assigns);
 			//System.err.println("Transition possible: " + synchronizedLabels[i]);
-			Transition nt = new Transition(synchronizedLabels[i], target, ConstantExpression.TRUE, Map.of());
-			if (priorityVectors[i])
-				return Collections.singleton(nt);
-			ret.add(nt);
+			buf.add(synchronizedLabels[i], vectorKinds[i],
+			        vectorValues[i], target);
+			if (priorityVectors[i]) {
+				buf.keepOnly(buf.size() - 1);
+				return;
+			}
 		}
-
-		return new LTS.TransitionSet(ret, true);
 	}
 
 	public void printAutomata(PrintStream out)
@@ -9,6 +9,7 @@ import java.util.Set;
 import java.util.TreeSet;
 import nl.utwente.ewi.fmt.EXPRES.expression.ConstantExpression;
 import nl.utwente.ewi.fmt.EXPRES.expression.Expression;
+import nl.utwente.ewi.fmt.EXPRES.expression.VariableSlot;
 
 public interface LTS
 {
@@ -568,9 +569,39 @@ public interface LTS
 
 	public int[] getInitialState();
 	public Set<Transition> getTransitions(int[] from) throws NondeterminismException;
+	/**
+	 * Write the transitions from the given state into buf, replacing
+	 * its contents, in the iteration order of getTransitions().
+	 * Guards are not represented, so this throws if any transition
+	 * has a guard other than true. Assignments are dropped, as with
+	 * only true guards nothing can depend on them.
+	 */
+	public default void getSuccessors(int[] from, TransitionBuffer buf)
+			throws NondeterminismException
+	{
+		buf.clear();
+		for (Transition t : getTransitions(from)) {
+			Number g = t.guard.evaluate(Map.of());
+			if (!(g instanceof Integer) || (int)g != 1)
+				throw new UnsupportedOperationException("Model has remaining non-true guards.");
+			buf.add(t.label, t.target);
+		}
+	}
 	public Map<String, Integer> getVarValues(int[] state);
 	public int getVarValue(String var, int[] state);
+	/** Where the variable is stored in the state vector, or null if
+	 * it is not stored directly (e.g., transient variables). */
+	public default VariableSlot getVarSlot(String var) {
+		return null;
+	}
 	public int stateSize();
+	/** The number of bits (at most 32) needed by each word of the
+	 * state vectors. */
+	public default int[] getStateBits() {
+		int[] ret = new int[stateSize()];
+		Arrays.fill(ret, 32);
+		return ret;
+	}
 	public static StateWrapperLike wrapUncomparable(final int[] state)
 	{
 		for (int i = state.length - 1; i >= 0; i--) {
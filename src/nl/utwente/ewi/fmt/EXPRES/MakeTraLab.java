@@ -58,7 +58,10 @@ public class MakeTraLab {
 	private class StateToExplore {
 		public final int[] state;
 		public final String label;
-		public Set<LTS.Transition> transitions;
+		/* Labels and targets of the outgoing transitions, null
+		 * until explored. */
+		public String[] labels;
+		public int[][] targets;
 		public String stateString;
 		public String marking;
 		public NondeterminismException explorationError;
@@ -79,6 +82,7 @@ public class MakeTraLab {
 
 		public void run () {
 			StateToExplore s;
+			TransitionBuffer buf = new TransitionBuffer(l.stateSize());
 			while (true) try {
 				s = toExplore.takeLast();
 				break;
@@ -97,21 +101,17 @@ public class MakeTraLab {
 					marking = null;
 				vals = null;
 				try {
-					Set<LTS.Transition> t = l.getTransitions(state);
-					for (LTS.Transition tr : t) {
-						Number g = tr.guard.evaluate(Map.of());
-						if (!(g instanceof Integer))
-							throw new UnsupportedOperationException("Model has remaining non-true guards.");
-						if ((int)g != 1)
-							throw new UnsupportedOperationException("Model has remaining non-true guards.");
-						/* Don't bother checking for
-						 * assignments: Even if they
-						 * exist, the cannot have any
-						 * effect (since no guard can
-						 * depend on them */
+					/* Throws if non-true guards remain. */
+					l.getSuccessors(state, buf);
+					String[] labels = new String[buf.size()];
+					int[][] targets = new int[buf.size()][];
+					for (int i = 0; i < labels.length; i++) {
+						labels[i] = buf.label(i);
+						targets[i] = buf.target(i);
 					}
 					synchronized(s) {
-						s.transitions = t;
+						s.labels = labels;
+						s.targets = targets;
 						s.stateString = sState;
 						s.marking = marking;
 						s.notifyAll();
@@ -279,7 +279,7 @@ public class MakeTraLab {
 
 	{
 		synchronized(state) {
-			while (state.transitions == null
+			while (state.labels == null
 			       && state.explorationError == null)
 			{
 				try {
@@ -304,10 +304,10 @@ public class MakeTraLab {
 		markings.add(state.marking);
 
 		StateToExplore next[];
-		next = new StateToExplore[state.transitions.size()];
-		int i = 0;
-		for (LTS.Transition t : state.transitions) {
-			next[i] = new StateToExplore(t.target, t.label);
+		next = new StateToExplore[state.labels.length];
+		for (int i = 0; i < next.length; i++) {
+			next[i] = new StateToExplore(state.targets[i],
+			                             state.labels[i]);
 			while (true)  {
 				try {
 					explorer.toExplore.put(next[i]);
@@ -315,7 +315,6 @@ public class MakeTraLab {
 				} catch (InterruptedException e) {
 				}
 			}
-			i++;
 		}
 		state = null;
 		TreeMap<Integer, Set<String>> ts = new TreeMap<>();
@@ -5,6 +5,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import nl.utwente.ewi.fmt.EXPRES.expression.VariableSlot;
 
 public class MarkedAutomaton implements MarkableLTS
 {
@@ -40,6 +41,13 @@ public class MarkedAutomaton implements MarkableLTS
 			throw new IllegalArgumentException("Attempt to read variable '" + var + "' of marked automaton without variables.");
 	}
 
+	public VariableSlot getVarSlot(String var)
+	{
+		if (var.equals("marked"))
+			return new VariableSlot(stateSize() - 1);
+		return null;
+	}
+
 	public Set<LTS.Transition> getTransitions(int[] from)
 	{
 		TreeSet<LTS.Transition> ret = new TreeSet<LTS.Transition>();
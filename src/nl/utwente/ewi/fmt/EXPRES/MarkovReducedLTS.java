@@ -10,16 +10,24 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import nl.utwente.ewi.fmt.EXPRES.expression.VariableSlot;
 
 public class MarkovReducedLTS implements LTS
 {
 	private final LTS original;
 	private final int[] initialState;
+	/* Per-thread buffers of getSuccessors(), for the transitions
+	 * from the state and from each of their targets. */
+	private final ThreadLocal<TransitionBuffer[]> buffers;
 	
 	public MarkovReducedLTS(LTS original)
 	{
 		this.original = original;
 		this.initialState = original.getInitialState();
+		int n = initialState.length;
+		buffers = ThreadLocal.withInitial(() -> new TransitionBuffer[] {
+				new TransitionBuffer(n), new TransitionBuffer(n)
+			});
 	}
 
 	public Map<String, Integer> getVarValues(int[] state)
@@ -32,6 +40,16 @@ public class MarkovReducedLTS implements LTS
 		return original.getVarValue(var, state);
 	}
 
+	public VariableSlot getVarSlot(String var)
+	{
+		return original.getVarSlot(var);
+	}
+
+	public int[] getStateBits()
+	{
+		return original.getStateBits();
+	}
+
 	public int[] getInitialState()
 	{
 		try {
@@ -250,6 +268,62 @@ public class MarkovReducedLTS implements LTS
 		return ret;
 	}
 
+	/**
+	 * Same transitions as getTransitions(), but avoids the search
+	 * for terminal states in the common case: a Markovian or
+	 * probabilistic transition to a state without any interactive or
+	 * timed transitions ends in that state.
+	 */
+	public void getSuccessors(int[] from, TransitionBuffer buf)
+		throws NondeterminismException
+	{
+		TransitionBuffer[] bs = buffers.get();
+		TransitionBuffer out = bs[0], next = bs[1];
+		original.getSuccessors(from, out);
+		buf.clear();
+		int[] target = next.scratch;
+		for (int i = 0; i < out.size(); i++) {
+			byte kind = out.kind(i);
+			if (kind == TransitionBuffer.OTHER)
+				continue;
+			if (kind == TransitionBuffer.TIMED) {
+				slowSuccessors(from, buf);
+				return;
+			}
+			System.arraycopy(out.targets(), out.targetOffset(i),
+			                 target, 0, target.length);
+			original.getSuccessors(target, next);
+			for (int j = 0; j < next.size(); j++) {
+				byte k = next.kind(j);
+				if (k == TransitionBuffer.OTHER
+				    || k == TransitionBuffer.TIMED)
+				{
+					slowSuccessors(from, buf);
+					return;
+				}
+			}
+			buf.add(out.label(i), kind, out.value(i), target);
+		}
+		/* Parallel transitions would have to be merged. */
+		for (int i = buf.size() - 1; i > 0; i--) {
+			for (int j = i - 1; j >= 0; j--) {
+				if (buf.label(i).equals(buf.label(j))
+				    && buf.sameTarget(i, j))
+				{
+					slowSuccessors(from, buf);
+					return;
+				}
+			}
+		}
+		buf.sort();
+	}
+
+	private void slowSuccessors(int[] from, TransitionBuffer buf)
+		throws NondeterminismException
+	{
+		LTS.super.getSuccessors(from, buf);
+	}
+
 	public int stateSize()
 	{
 		return initialState.length;
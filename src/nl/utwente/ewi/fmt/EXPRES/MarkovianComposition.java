@@ -7,6 +7,7 @@ import java.util.Comparator;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import nl.utwente.ewi.fmt.EXPRES.expression.VariableSlot;
 
 /** Models a reduction from a composed automaton to a Markovian model,
  * with the following properties:
@@ -142,9 +143,15 @@ public class MarkovianComposition implements LTS
 	}
 
 	@Override public int stateSize() { return original.stateSize(); }
+	@Override public int[] getStateBits() {
+		return original.getStateBits();
+	}
 	@Override public int getVarValue(String v, int[] s) {
 		return original.getVarValue(v, s);
 	}
+	@Override public VariableSlot getVarSlot(String v) {
+		return original.getVarSlot(v);
+	}
 	@Override public Map<String, Integer> getVarValues(int[] s) {
 		return original.getVarValues(s);
 	}
@@ -6,6 +6,7 @@ import java.util.Set;
 import java.util.TreeSet;
 import java.io.IOException;
 import java.io.PrintStream;
+import nl.utwente.ewi.fmt.EXPRES.expression.CompiledExpression;
 import nl.utwente.ewi.fmt.EXPRES.expression.Expression;
 import models.StateSpace;
 
@@ -92,6 +93,29 @@ public class Property implements Comparable<Property>
 		return compareExprs(this.transientReward, other.transientReward);
 	}
 
+	/** Whether this and other have the same red and blue states. */
+	public boolean sameGoal(Property other)
+	{
+		if ((type == Type.STEADY_STATE) != (other.type == Type.STEADY_STATE))
+			return false;
+		return compareExprs(reachTarget, other.reachTarget) == 0;
+	}
+
+	/** Whether this and other are both reachability properties
+	 * with finite time bounds, only differing in those bounds. */
+	public boolean differsOnlyInTimeBound(Property other)
+	{
+		if (type != Type.REACHABILITY || other.type != Type.REACHABILITY)
+			return false;
+		if (!Double.isFinite(timeBound) || !Double.isFinite(other.timeBound))
+			return false;
+		if (compareExprs(reachTarget, other.reachTarget) != 0)
+			return false;
+		if (compareExprs(timeCumulativeReward, other.timeCumulativeReward) != 0)
+			return false;
+		return compareExprs(transientReward, other.transientReward) == 0;
+	}
+
 	public Set<String> getReferencedVariables() {
 		TreeSet<String> ret = new TreeSet<>();
 		if (reachTarget != null)
@@ -149,16 +173,31 @@ public class Property implements Comparable<Property>
 	}
 
 	public boolean isRed(StateSpace ss, StateSpace.State state)
+	{
+		return ss.isRed(this, state);
+	}
+
+	public boolean isBlue(StateSpace ss, StateSpace.State state)
+	{
+		return ss.isBlue(this, state);
+	}
+
+	/** Evaluate whether the state is red, without the cache of the
+	 * state space. */
+	public boolean computeRed(StateSpace ss, StateSpace.State state)
 	{
 		if (reachTarget == null)
 			return false;
+		CompiledExpression c = reachTarget.compile(ss);
+		if (c != null)
+			return c.evaluateBoolean(state.getWords(c.words()));
 		Number n = reachTarget.evaluate(ss, state);
 		if (n instanceof Integer || n instanceof Long)
 			return n.longValue() != 0;
 		return n.doubleValue() != 0;
 	}
 	
-	public boolean isBlue(StateSpace ss, StateSpace.State state)
+	public boolean computeBlue(StateSpace ss, StateSpace.State state)
 	{
 		if (type != Type.STEADY_STATE)
 			return false;
@@ -12,6 +12,7 @@ import nl.utwente.ewi.fmt.EXPRES.JaniModel.JaniType;
 import nl.utwente.ewi.fmt.EXPRES.JaniModel.JaniBaseType;
 import nl.utwente.ewi.fmt.EXPRES.expression.Expression;
 import nl.utwente.ewi.fmt.EXPRES.expression.ConstantExpression;
+import nl.utwente.ewi.fmt.EXPRES.expression.VariableSlot;
 
 public class SymbolicAutomaton implements LTS {
 	private final int[] initialState;
@@ -381,6 +382,14 @@ public class SymbolicAutomaton implements LTS {
 		throw new IllegalArgumentException("Requested value of variable '" + var + "' but that is not a variable of this automaton");
 	}
 
+	public VariableSlot getVarSlot(String var)
+	{
+		for (int i = 1; i < variables.length; i++)
+			if (var.equals(variables[i]))
+				return new VariableSlot(i);
+		return null;
+	}
+
 	public Set<String> getAllTransitionLabels()
 	{
 		Set<String> ret = new HashSet<>();
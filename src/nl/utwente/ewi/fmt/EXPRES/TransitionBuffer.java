@@ -0,0 +1,195 @@
+package nl.utwente.ewi.fmt.EXPRES;
+
+import java.util.Arrays;
+
+/**
+ * Reusable storage for the outgoing transitions of a state, filled by
+ * LTS.getSuccessors().
+ *
+ * Transition i has label label(i), kind kind(i), and (for rates,
+ * probabilities and delays) numeric value value(i). Its target vector
+ * is stored in targets() from index targetOffset(i). A buffer is not
+ * thread-safe, so every thread needs its own.
+ */
+public final class TransitionBuffer
+{
+	public static final byte RATE = 0, PROBABILITY = 1, TIMED = 2, OTHER = 3;
+
+	private final int width;
+	private int size;
+	private String[] labels = new String[8];
+	private byte[] kinds = new byte[8];
+	private double[] values = new double[8];
+	private int[] targets;
+	private final int[] swapTmp;
+	/** Scratch vector in which LTSs may build targets. */
+	public final int[] scratch;
+
+	/** @param width The length of the state vectors. */
+	public TransitionBuffer(int width)
+	{
+		this.width = width;
+		targets = new int[8 * width];
+		scratch = new int[width];
+		swapTmp = new int[width];
+	}
+
+	/** The kind of transition denoted by a label. */
+	public static byte kindOf(String label)
+	{
+		switch (label.charAt(0)) {
+		case 'r':
+			return RATE;
+		case 'p':
+			return PROBABILITY;
+		case 't':
+			return TIMED;
+		default:
+			return OTHER;
+		}
+	}
+
+	/** The rate, probability or delay in a label, or NaN if it has
+	 * none. */
+	public static double valueOf(String label)
+	{
+		if (kindOf(label) == OTHER)
+			return Double.NaN;
+		try {
+			return Double.parseDouble(label.substring(1));
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	public int width()
+	{
+		return width;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public void clear()
+	{
+		size = 0;
+	}
+
+	/** Append a transition with a copy of the given target. */
+	public void add(String label, byte kind, double value, int[] target)
+	{
+		if (size == labels.length) {
+			int n = size * 2;
+			labels = Arrays.copyOf(labels, n);
+			kinds = Arrays.copyOf(kinds, n);
+			values = Arrays.copyOf(values, n);
+			targets = Arrays.copyOf(targets, n * width);
+		}
+		labels[size] = label;
+		kinds[size] = kind;
+		values[size] = value;
+		System.arraycopy(target, 0, targets, size * width, width);
+		size++;
+	}
+
+	public void add(String label, int[] target)
+	{
+		add(label, kindOf(label), valueOf(label), target);
+	}
+
+	/** Remove all transitions except transition i. */
+	public void keepOnly(int i)
+	{
+		if (i != 0) {
+			labels[0] = labels[i];
+			kinds[0] = kinds[i];
+			values[0] = values[i];
+			System.arraycopy(targets, i * width, targets, 0, width);
+		}
+		size = 1;
+	}
+
+	public String label(int i)
+	{
+		return labels[i];
+	}
+
+	public byte kind(int i)
+	{
+		return kinds[i];
+	}
+
+	public double value(int i)
+	{
+		return values[i];
+	}
+
+	public int[] targets()
+	{
+		return targets;
+	}
+
+	public int targetOffset(int i)
+	{
+		return i * width;
+	}
+
+	/** A new array holding the target of transition i. */
+	public int[] target(int i)
+	{
+		return Arrays.copyOfRange(targets, i * width, (i + 1) * width);
+	}
+
+	/** Whether transitions i and j have equal targets. */
+	public boolean sameTarget(int i, int j)
+	{
+		return Arrays.equals(targets, i * width, (i + 1) * width,
+		                     targets, j * width, (j + 1) * width);
+	}
+
+	/**
+	 * Compare transitions i and j by label and then by target, the
+	 * order of LTS.Transition for transitions without guards or
+	 * assignments.
+	 */
+	public int compare(int i, int j)
+	{
+		int r = labels[i].compareTo(labels[j]);
+		if (r != 0)
+			return r;
+		return Arrays.compare(targets, i * width, (i + 1) * width,
+		                      targets, j * width, (j + 1) * width);
+	}
+
+	/** Sort the transitions by compare(). */
+	public void sort()
+	{
+		/* Insertion sort: states have few transitions. */
+		for (int i = 1; i < size; i++) {
+			int j = i;
+			while (j > 0 && compare(j - 1, j) > 0) {
+				swap(j - 1, j);
+				j--;
+			}
+		}
+	}
+
+	private void swap(int i, int j)
+	{
+		int[] tmp = swapTmp;
+		String l = labels[i];
+		labels[i] = labels[j];
+		labels[j] = l;
+		byte k = kinds[i];
+		kinds[i] = kinds[j];
+		kinds[j] = k;
+		double v = values[i];
+		values[i] = values[j];
+		values[j] = v;
+		System.arraycopy(targets, i * width, tmp, 0, width);
+		System.arraycopy(targets, j * width, targets, i * width, width);
+		System.arraycopy(tmp, 0, targets, j * width, width);
+	}
+}
@@ -0,0 +1,4 @@
+package nl.utwente.ewi.fmt.EXPRES;
+public class Version {
+	public static final String version = "1.0.2" + "+" + "3c635645dfe0251955a928d91ab742350e59e0fd".substring(0,8) + "-dirty";
+}
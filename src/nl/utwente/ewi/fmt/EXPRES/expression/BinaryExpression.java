@@ -7,6 +7,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeSet;
 import java.util.Set;
+import java.util.function.Function;
 
 import models.StateSpace;
 
@@ -292,6 +293,82 @@ public class BinaryExpression extends Expression
 		return this;
 	}
 
+	@Override
+	public CompiledExpression compile(Function<String, VariableSlot> vars) {
+		CompiledExpression l = left.compile(vars);
+		CompiledExpression r = right.compile(vars);
+		if (l == null || r == null)
+			return null;
+		boolean integer = l.isInteger() && r.isInteger();
+		switch (op) {
+			case AND: {
+				CompiledExpression.BooleanCode a = l.booleanCode();
+				CompiledExpression.BooleanCode b = r.booleanCode();
+				return CompiledExpression.ofBoolean(s -> a.evaluate(s) && b.evaluate(s));
+			}
+			case OR: {
+				CompiledExpression.BooleanCode a = l.booleanCode();
+				CompiledExpression.BooleanCode b = r.booleanCode();
+				return CompiledExpression.ofBoolean(s -> a.evaluate(s) || b.evaluate(s));
+			}
+			case XOR: {
+				CompiledExpression.BooleanCode a = l.booleanCode();
+				CompiledExpression.BooleanCode b = r.booleanCode();
+				return CompiledExpression.ofBoolean(s -> a.evaluate(s) ^ b.evaluate(s));
+			}
+		}
+		if (integer) {
+			CompiledExpression.IntegerCode a = l.integerCode();
+			CompiledExpression.IntegerCode b = r.integerCode();
+			switch (op) {
+				case EQUALS:
+					return CompiledExpression.ofBoolean(s -> a.evaluate(s) == b.evaluate(s));
+				case NOT_EQUALS:
+					return CompiledExpression.ofBoolean(s -> a.evaluate(s) != b.evaluate(s));
+				case LESS:
+					return CompiledExpression.ofBoolean(s -> a.evaluate(s) < b.evaluate(s));
+				case LESS_OR_EQUAL:
+					return CompiledExpression.ofBoolean(s -> a.evaluate(s) <= b.evaluate(s));
+				case ADD:
+					return CompiledExpression.ofInteger(s -> a.evaluate(s) + b.evaluate(s));
+				case SUBTRACT:
+					return CompiledExpression.ofInteger(s -> a.evaluate(s) - b.evaluate(s));
+				case MULTIPLY:
+					return CompiledExpression.ofInteger(s -> Math.multiplyExact(a.evaluate(s), b.evaluate(s)));
+				case MINIMUM:
+					return CompiledExpression.ofInteger(s -> Math.min(a.evaluate(s), b.evaluate(s)));
+				case MAXIMUM:
+					return CompiledExpression.ofInteger(s -> Math.max(a.evaluate(s), b.evaluate(s)));
+			}
+		}
+		CompiledExpression.RealCode a = l.realCode();
+		CompiledExpression.RealCode b = r.realCode();
+		switch (op) {
+			case ADD:
+				return CompiledExpression.ofReal(s -> a.evaluate(s) + b.evaluate(s));
+			case SUBTRACT:
+				return CompiledExpression.ofReal(s -> a.evaluate(s) - b.evaluate(s));
+			case MULTIPLY:
+				return CompiledExpression.ofReal(s -> a.evaluate(s) * b.evaluate(s));
+			case DIVIDE:
+				return CompiledExpression.ofReal(s -> a.evaluate(s) / b.evaluate(s));
+			case POWER:
+				return CompiledExpression.ofReal(s -> Math.pow(a.evaluate(s), b.evaluate(s)));
+			case MINIMUM:
+				return CompiledExpression.ofReal(s -> {
+					double x = a.evaluate(s), y = b.evaluate(s);
+					return y < x ? y : x;
+				});
+			case MAXIMUM:
+				return CompiledExpression.ofReal(s -> {
+					double x = a.evaluate(s), y = b.evaluate(s);
+					return x < y ? y : x;
+				});
+		}
+		/* Comparisons of non-integers are undefined. */
+		return null;
+	}
+
 	@Override
 	public BinaryExpression renameVars(Map<String, String> renames) {
 		return new BinaryExpression(op, left.renameVars(renames),
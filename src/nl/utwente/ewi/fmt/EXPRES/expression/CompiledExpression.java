@@ -0,0 +1,127 @@
+package nl.utwente.ewi.fmt.EXPRES.expression;
+
+/**
+ * Expression compiled against a fixed state layout, which can be
+ * evaluated directly on state vectors without allocating.
+ *
+ * An expression evaluates either to integers or to doubles, which is
+ * determined at compile time.
+ */
+public final class CompiledExpression
+{
+	@FunctionalInterface
+	interface IntegerCode {
+		long evaluate(int[] state);
+	}
+
+	@FunctionalInterface
+	interface RealCode {
+		double evaluate(int[] state);
+	}
+
+	@FunctionalInterface
+	interface BooleanCode {
+		boolean evaluate(int[] state);
+	}
+
+	private final IntegerCode intCode;
+	private final RealCode realCode;
+	private final int[] words;
+
+	private CompiledExpression(IntegerCode i, RealCode r, int[] w)
+	{
+		intCode = i;
+		realCode = r;
+		words = w;
+	}
+
+	private CompiledExpression(IntegerCode i, RealCode r)
+	{
+		this(i, r, null);
+	}
+
+	/* The same expression, reading only the given words. */
+	CompiledExpression withWords(int[] w)
+	{
+		return new CompiledExpression(intCode, realCode, w);
+	}
+
+	/** The words of the state vector read by the expression, or
+	 * null if this is not known. */
+	public int[] words()
+	{
+		return words;
+	}
+
+	static CompiledExpression ofInteger(IntegerCode code)
+	{
+		return new CompiledExpression(code, null);
+	}
+
+	static CompiledExpression ofReal(RealCode code)
+	{
+		return new CompiledExpression(null, code);
+	}
+
+	static CompiledExpression ofBoolean(BooleanCode code)
+	{
+		return ofInteger(s -> code.evaluate(s) ? 1 : 0);
+	}
+
+	public boolean isInteger()
+	{
+		return intCode != null;
+	}
+
+	IntegerCode integerCode()
+	{
+		return intCode;
+	}
+
+	RealCode realCode()
+	{
+		if (realCode != null)
+			return realCode;
+		IntegerCode i = intCode;
+		return s -> i.evaluate(s);
+	}
+
+	BooleanCode booleanCode()
+	{
+		if (intCode != null) {
+			IntegerCode i = intCode;
+			return s -> i.evaluate(s) != 0;
+		}
+		RealCode r = realCode;
+		return s -> r.evaluate(s) != 0;
+	}
+
+	public long evaluateLong(int[] state)
+	{
+		if (intCode != null)
+			return intCode.evaluate(state);
+		return (long)realCode.evaluate(state);
+	}
+
+	public double evaluateDouble(int[] state)
+	{
+		if (intCode != null)
+			return intCode.evaluate(state);
+		return realCode.evaluate(state);
+	}
+
+	public boolean evaluateBoolean(int[] state)
+	{
+		if (intCode != null)
+			return intCode.evaluate(state) != 0;
+		return realCode.evaluate(state) != 0;
+	}
+
+	/** Evaluate to a Long or Double, like Expression.evaluate(). */
+	public Number evaluate(int[] state)
+	{
+		if (intCode != null)
+			return intCode.evaluate(state);
+		return realCode.evaluate(state);
+	}
+}
@@ -5,6 +5,7 @@ import java.io.PrintStream;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
 
 import models.StateSpace;
 
@@ -46,6 +47,15 @@ public class ConstantExpression extends Expression
 		return value;
 	}
 
+	public CompiledExpression compile(Function<String, VariableSlot> vars) {
+		if (value instanceof Long || value instanceof Integer) {
+			long v = value.longValue();
+			return CompiledExpression.ofInteger(s -> v);
+		}
+		double v = value.doubleValue();
+		return CompiledExpression.ofReal(s -> v);
+	}
+
 	public ConstantExpression renameVars(Map<String, String> renames) {
 		return this;
 	}
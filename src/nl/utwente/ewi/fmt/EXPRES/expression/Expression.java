@@ -5,7 +5,9 @@ import java.io.PrintStream;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.Set;
+import java.util.function.Function;
 import models.StateSpace;
 
 import nl.utwente.ewi.fmt.EXPRES.expression.BinaryExpression.Operator;
@@ -23,6 +25,9 @@ public abstract class Expression
 
 	public abstract Number evaluate(Map<String, ? extends Number> valuation);
 	public Number evaluate(StateSpace s, StateSpace.State state) {
+		CompiledExpression c = compile(s);
+		if (c != null)
+			return c.evaluate(state.getWords(c.words()));
 		HashMap<String, Number> vals = new HashMap<>();
 		for (String v : getReferencedVariables()) {
 			Number val = s.getVarValue(v, state);
@@ -42,6 +47,56 @@ public abstract class Expression
 		return evaluate(vals);
 	}
 
+	private static class CompiledFor {
+		final StateSpace space;
+		final CompiledExpression code;
+		CompiledFor(StateSpace space, CompiledExpression code) {
+			this.space = space;
+			this.code = code;
+		}
+	}
+	/* Compilation for the most recently used state space. */
+	private volatile CompiledFor compiled;
+
+	/**
+	 * Compile this expression for evaluation on the states of the
+	 * given state space, knowing which words it reads (see
+	 * StateSpace.State.getWords()). The result is cached.
+	 *
+	 * @return The compiled expression, or null if some variable is
+	 * not stored directly in the states.
+	 */
+	public CompiledExpression compile(StateSpace s) {
+		CompiledFor c = compiled;
+		if (c == null || c.space != s) {
+			CompiledExpression code = compile(s::getVarSlot);
+			if (code != null) {
+				TreeSet<Integer> words = new TreeSet<>();
+				for (String v : getReferencedVariables())
+					words.add(s.getVarSlot(v).word);
+				int[] ws = new int[words.size()];
+				int i = 0;
+				for (int w : words)
+					ws[i++] = w;
+				code = code.withWords(ws);
+			}
+			c = new CompiledFor(s, code);
+			compiled = c;
+		}
+		return c.code;
+	}
+
+	/**
+	 * Compile this expression, given the slot of each variable (or
+	 * null for variables without a slot).
+	 *
+	 * @return The compiled expression, or null if it cannot be
+	 * compiled.
+	 */
+	public CompiledExpression compile(Function<String, VariableSlot> vars) {
+		return null;
+	}
+
 	public static Expression fromJani(Object o)
 	{
 		if (o instanceof Number)
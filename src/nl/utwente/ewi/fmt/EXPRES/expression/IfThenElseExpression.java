@@ -6,6 +6,7 @@ import java.util.Collections;
 import java.util.Map;
 import java.util.TreeSet;
 import java.util.Set;
+import java.util.function.Function;
 
 import models.StateSpace;
 
@@ -119,6 +120,24 @@ public class IfThenElseExpression extends Expression
 		return this;
 	}
 
+	@Override
+	public CompiledExpression compile(Function<String, VariableSlot> vars) {
+		CompiledExpression c = condition.compile(vars);
+		CompiledExpression t = thenExpr.compile(vars);
+		CompiledExpression e = elseExpr.compile(vars);
+		if (c == null || t == null || e == null)
+			return null;
+		CompiledExpression.BooleanCode cond = c.booleanCode();
+		if (t.isInteger() && e.isInteger()) {
+			CompiledExpression.IntegerCode tI = t.integerCode();
+			CompiledExpression.IntegerCode eI = e.integerCode();
+			return CompiledExpression.ofInteger(s -> cond.evaluate(s) ? tI.evaluate(s) : eI.evaluate(s));
+		}
+		CompiledExpression.RealCode tR = t.realCode();
+		CompiledExpression.RealCode eR = e.realCode();
+		return CompiledExpression.ofReal(s -> cond.evaluate(s) ? tR.evaluate(s) : eR.evaluate(s));
+	}
+
 	@Override
 	public IfThenElseExpression renameVars(Map<String, String> renames) {
 		return new IfThenElseExpression(condition.renameVars(renames),
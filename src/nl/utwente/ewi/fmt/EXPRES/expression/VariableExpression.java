@@ -5,6 +5,7 @@ import java.io.PrintStream;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
 
 import models.StateSpace;
 
@@ -52,6 +53,17 @@ public class VariableExpression extends Expression
 		return s.getVarValue(variable, state);
 	}
 
+	public CompiledExpression compile(Function<String, VariableSlot> vars) {
+		VariableSlot slot = vars.apply(variable);
+		if (slot == null)
+			return null;
+		int word = slot.word, low = slot.lowBit;
+		int mask = slot.mask, offset = slot.offset;
+		if (low == 0 && mask == -1 && offset == 0)
+			return CompiledExpression.ofInteger(s -> s[word]);
+		return CompiledExpression.ofInteger(s -> ((s[word] >> low) & mask) + offset);
+	}
+
 	public VariableExpression renameVars(Map<String, String> renames) {
 		String newName = renames.get(variable);
 		if (newName == null)
@@ -0,0 +1,33 @@
+package nl.utwente.ewi.fmt.EXPRES.expression;
+
+/**
+ * Location of an integer variable in a state vector: the bits
+ * lowBit up to (and including) highBit of word number word, offset
+ * by the lower bound of the variable.
+ */
+public final class VariableSlot
+{
+	public final int word;
+	public final int lowBit;
+	public final int mask;
+	public final int offset;
+
+	public VariableSlot(int word, int lowBit, int highBit, int offset)
+	{
+		this.word = word;
+		this.lowBit = lowBit;
+		this.mask = (-1) >>> (31 - (highBit - lowBit));
+		this.offset = offset;
+	}
+
+	/** Slot for a variable taking up a whole word. */
+	public VariableSlot(int word)
+	{
+		this(word, 0, 31, 0);
+	}
+
+	public int read(int[] state)
+	{
+		return ((state[word] >> lowBit) & mask) + offset;
+	}
+}
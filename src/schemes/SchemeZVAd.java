@@ -1,10 +1,12 @@
 package schemes;
 import algorithms.Scheme;
 import algorithms.SearchAlgorithm;
+import algorithms.StateIndex;
+import models.AliasTable;
 import models.StateSpace;
+import models.StateSpace.Neighbours;
 import models.StateSpace.State;
 import java.util.HashMap;
-import java.util.Map;
 import java.util.Random;
 import nl.utwente.ewi.fmt.EXPRES.Property;
 
@@ -12,14 +14,28 @@ import nl.utwente.ewi.fmt.EXPRES.Property;
 
 public class SchemeZVAd extends Scheme {
 	private static class StateInfo {
-		public final double v;
-		public final int d;
-		public StateInfo(double v, int d) {
-			this.v = v;
-			this.d = d;
+		public final boolean outOfLambda;
+		/* Kept to prevent garbage collection of the neighbours,
+		 * which could reorder them when recreated (see
+		 * SchemeZVAv). */
+		public final Neighbours nbs;
+		public final double[] weightsIS;
+		public final double weightSum;
+		public final AliasTable alias;
+		public StateInfo(boolean outOfLambda, Neighbours nbs,
+		                 double[] weights, double sum)
+		{
+			this.outOfLambda = outOfLambda;
+			this.nbs = nbs;
+			weightsIS = weights;
+			weightSum = sum;
+			if (weights != null && weights.length >= AliasTable.MIN_ENTRIES)
+				alias = new AliasTable(weights);
+			else
+				alias = null;
 		}
 	};
-	private double[] myStateWeights = new double[1];
+	private static final StateInfo OUT_OF_LAMBDA = new StateInfo(true, null, null, 0);
 	private boolean haveLeftLambda;
 	private final HashMap<State, StateInfo> info;
 	
@@ -35,11 +51,52 @@ public class SchemeZVAd extends Scheme {
 
 	public static SchemeZVAd instantiate(StateSpace model, Property prop) {
 		SearchAlgorithm s = new SearchAlgorithm(model, prop);
-		HashMap<State, Double> v = s.runAlgorithm();
+		s.runAlgorithm();
+		return instantiate(model, s);
+	}
+
+	/** Instantiate from a completed search of the model. */
+	public static SchemeZVAd instantiate(StateSpace model,
+	                                     SearchAlgorithm s) {
+		double[] v = s.values;
+		int[] dist = s.d;
+		StateIndex index = s.index;
+		int maxD = 0;
+		for (int d : dist)
+			if (d != Integer.MAX_VALUE && d > maxD)
+				maxD = d;
+		double[] powers = new double[maxD + 1];
+		powers[0] = 1;
+		for (int i = 1; i <= maxD; i++)
+			powers[i] = Math.pow(model.epsilon, i);
+
 		HashMap<State, StateInfo> sinfo = new HashMap<>();
-		for (Map.Entry<State, Double> e : v.entrySet()) {
-			StateInfo si = new StateInfo(e.getValue(), s.d.get(e.getKey()));
-			sinfo.put(e.getKey(), si);
+		State init = model.getInitialState();
+		for (int k = 0; k < v.length; k++) {
+			State st = model.find(index.get(k));
+			boolean out = v[k] == 1;
+			/* The initial state always uses its weights. */
+			if (out && !st.equals(init)) {
+				sinfo.put(st, OUT_OF_LAMBDA);
+				continue;
+			}
+			Neighbours nb = st.pinNeighbours();
+			double[] probs = nb.probs;
+			double[] weights = new double[probs.length];
+			double sum = 0;
+			for (int i = 0; i < probs.length; i++) {
+				int d = dist[index.indexOf(nb.neighbours[i])];
+				double p;
+				if (d < powers.length)
+					p = powers[d];
+				else
+					p = Math.pow(model.epsilon, d);
+				weights[i] = probs[i] * p;
+				sum += weights[i];
+			}
+			if (sum == 0)
+				weights = null;
+			sinfo.put(st, new StateInfo(out, nb, weights, sum));
 		}
 		return new SchemeZVAd(model, sinfo);
 	}
@@ -55,7 +112,7 @@ public class SchemeZVAd extends Scheme {
 	public StateSpace.Neighbours prepareState(State state, double timeBound) {
 		StateSpace.Neighbours ret = super.prepareState(state, timeBound);
 		StateInfo sinfo = info.get(state);
-		if (sinfo == null || sinfo.v == 1)
+		if (sinfo == null || sinfo.outOfLambda)
 			haveLeftLambda = true;
 		if (haveLeftLambda) {
 			if (state.equals(model.getInitialState()))
@@ -63,14 +120,13 @@ public class SchemeZVAd extends Scheme {
 			else
 				return ret;
 		}
-		if (myStateWeights.length < probs.length)
-			myStateWeights = new double[probs.length];
-		stateWeightsIS = myStateWeights;
-		totalStateWeightIS = 0;
-		for(int i=0;i<probs.length;i++) {
-			stateWeightsIS[i] = probs[i]*Math.pow(model.epsilon, info.get(neighbours[i]).d);
-			totalStateWeightIS += stateWeightsIS[i];
-		}
+		if (sinfo == null || sinfo.weightsIS == null)
+			return ret;
+		if (ret != sinfo.nbs)
+			throw new AssertionError("Different neighbours");
+		stateWeightsIS = sinfo.weightsIS;
+		totalStateWeightIS = sinfo.weightSum;
+		aliasIS = sinfo.alias;
 		return ret;
 	}
 
@@ -2,6 +2,7 @@ package schemes;
 
 import algorithms.Scheme;
 import algorithms.SearchAlgorithm;
+import algorithms.StateIndex;
 import models.StateSpace;
 import models.StateSpace.Neighbours;
 import models.StateSpace.State;
@@ -13,10 +14,8 @@ import nl.utwente.ewi.fmt.EXPRES.Property;
  */
 public class SchemeZVAt extends Scheme {
 	private static class StateInfo {
-		/* The Neighbours needs to be kept in here to prevent
-		 * garbage collection of this data in the actual state,
-		 * which could lead to re-ordering of the neighbours
-		 * when it is recreated.
+		/* The Neighbours are pinned in the state, since
+		 * recreating them could re-order the neighbours.
 		 */
 		public final Neighbours nbs;
 		public final double[] weights;
@@ -50,17 +49,26 @@ public class SchemeZVAt extends Scheme {
 
 	public static SchemeZVAt instantiate(StateSpace model, Property prop)
 	{
-		HashMap<State, StateInfo> info = new HashMap<>();
 		SearchAlgorithm search = new SearchAlgorithm(model, prop);
-		HashMap<State, Double> v = search.runAlgorithm();
-		HashMap<State, Integer> d = search.d;
+		search.runAlgorithm();
+		return instantiate(model, search);
+	}
+
+	/** Instantiate from a completed search of the model. */
+	public static SchemeZVAt instantiate(StateSpace model,
+	                                     SearchAlgorithm search)
+	{
+		HashMap<State, StateInfo> info = new HashMap<>();
+		double[] v = search.values;
+		int[] d = search.d;
+		StateIndex index = search.index;
 		int mostNeighbours = 0;
 
-		for (State s : v.keySet()) {
-			s = model.find(s);
-			if (v.get(s) == 1)
+		for (int k = 0; k < v.length; k++) {
+			if (v[k] == 1)
 				continue; /* Out of lambda */
-			Neighbours nb = s.getNeighbours();
+			State s = model.find(index.get(k));
+			Neighbours nb = s.pinNeighbours();
 			State neighbours[] = nb.neighbours;
 			if (neighbours.length == 0)
 				continue;
@@ -68,9 +76,10 @@ public class SchemeZVAt extends Scheme {
 			double exitRates[] = new double[neighbours.length];
 			double ps[] = nb.probs;
 			for(int i = 0; i < neighbours.length; i++) {
-				ws[i] = v.get(neighbours[i]) * ps[i];
+				int j = index.indexOf(neighbours[i]);
+				ws[i] = v[j] * ps[i];
 				exitRates[i] = neighbours[i].getNeighbours().exitRate;
-				if (d.get(neighbours[i]) == 0)
+				if (d[j] == 0)
 					exitRates[i] = Double.POSITIVE_INFINITY;
 			}
 			if (neighbours.length > mostNeighbours)
@@ -2,6 +2,8 @@ package schemes;
 
 import algorithms.Scheme;
 import algorithms.SearchAlgorithm;
+import algorithms.StateIndex;
+import models.AliasTable;
 import models.StateSpace;
 import models.StateSpace.Neighbours;
 import models.StateSpace.State;
@@ -13,19 +15,22 @@ import nl.utwente.ewi.fmt.EXPRES.Property;
 
 public class SchemeZVAv extends Scheme {
 	private static class StateInfo {
-		/* The Neighbours needs to be kept in here to prevent
-		 * garbage collection of this data in the actual state,
-		 * which could lead to re-ordering of the neighbours
-		 * when it is recreated.
+		/* The Neighbours are pinned in the state, since
+		 * recreating them could re-order the neighbours.
 		 */
 		public final Neighbours nbs;
 		public final double[] weightsIS;
 		public final double weightSum;
+		public final AliasTable alias;
 		public StateInfo(Neighbours nbs, double[] weights, double sum)
 		{
 			this.nbs = nbs;
 			weightsIS = weights;
 			weightSum = sum;
+			if (weights.length >= AliasTable.MIN_ENTRIES)
+				alias = new AliasTable(weights);
+			else
+				alias = null;
 		}
 	}
 	private final HashMap<State, StateInfo> cachedInfo;
@@ -42,23 +47,32 @@ public class SchemeZVAv extends Scheme {
 	}
 
 	public static SchemeZVAv instantiate(StateSpace model, Property prop)
+	{
+		SearchAlgorithm search = new SearchAlgorithm(model, prop);
+		search.runAlgorithm();
+		return instantiate(model, search);
+	}
+
+	/** Instantiate from a completed search of the model. */
+	public static SchemeZVAv instantiate(StateSpace model,
+	                                     SearchAlgorithm search)
 	{
 		HashMap<State, StateInfo> info = new HashMap<>();
-		HashMap<State, Double> v;
-		v = new SearchAlgorithm(model, prop).runAlgorithm();
-		for (State s : v.keySet()) {
-			s = model.find(s);
-			Neighbours nb = s.getNeighbours();
-			State neighbours[] = nb.neighbours;
-			if (v.get(s) == 1)
+		double[] v = search.values;
+		StateIndex index = search.index;
+		for (int k = 0; k < v.length; k++) {
+			if (v[k] == 1)
 				continue; /* Out of lambda */
+			State s = model.find(index.get(k));
+			Neighbours nb = s.pinNeighbours();
+			State neighbours[] = nb.neighbours;
 			double probs[] = nb.probs;
 			double sum = 0;
 			double weights[] = new double[probs.length];
 			if (weights.length != neighbours.length)
 				throw new AssertionError("Length mismatch");
 			for(int i = 0; i < probs.length; i++) {
-				double vi = v.get(neighbours[i]);
+				double vi = v[index.indexOf(neighbours[i])];
 				weights[i] = probs[i] * vi;
 				sum += weights[i];
 			}
@@ -88,6 +102,7 @@ public class SchemeZVAv extends Scheme {
 			if (si.weightsIS.length != ret.neighbours.length)
 				throw new AssertionError(ret.neighbours.length + " neighbours but " + stateWeightsIS.length + " weights");
 			totalStateWeightIS = si.weightSum;
+			aliasIS = si.alias;
 		}
 		return ret;
 	}